@@ -320,6 +320,7 @@ public class Andie {
                             changesSaved = true;
                             frame.dispose(); // Close the program
                         } else if (option == JOptionPane.NO_OPTION) {
+                            imagePanel.getImage().discardJournal();
                             changesSaved = true;
                             frame.dispose(); // Close the program without saving
                         }else if (option == JOptionPane.CANCEL_OPTION){
@@ -327,6 +328,7 @@ public class Andie {
                         }
                         // If the user chooses cancel, do nothing and the program will continue running
                     } else {
+                        imagePanel.getImage().discardJournal();
                         frame.dispose(); // Close the program
                     }
                 }
@@ -429,11 +431,20 @@ public class Andie {
      * As a result, this is essentially a wrapper around {@code createAndShowGUI()}.
      * </p>
      * 
-     * @param args Command line arguments, not currently used
+     * <p>
+     * If the first argument is <code>--ops</code>, no GUI is created at all. Instead the 
+     * operations are applied to an image from the command line by {@link CommandLine}.
+     * </p>
+     * 
+     * @param args Command line arguments: an image to reopen and the window size after a 
+     *             language change, or <code>--ops edit.ops in.jpg out.png</code>.
      * @throws Exception If something goes awry
      * @see #createAndShowGUI()
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(CommandLine.OPS_OPTION)) {
+            System.exit(CommandLine.run(args));
+        }
         javax.swing.SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 try { 
@@ -0,0 +1,299 @@
+package cosc202.andie;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.imageio.ImageIO;
+
+/**
+ * <p>
+ * Apply a macro to every image in a directory, without the user interface.
+ * </p>
+ *
+ * <p>
+ * Each image in the input directory is decoded, has the macro's operations applied through an
+ * {@link OperationPipeline}, and is encoded to a file of the same name in the output directory.
+ * Decoding and encoding run on one pool of threads and the operations on another, so that one
+ * image's file can be read or written while another is being processed. Only a bounded number of
+ * images are in progress at once, so the memory used does not grow with the size of the directory.
+ * </p>
+ *
+ * <p>
+ * Each image gets its own copy of the macro's operations, so operations need not be thread-safe.
+ * An image that fails is reported and skipped; the rest of the batch carries on.
+ * </p>
+ *
+ * <p>
+ * Usage: <code>java cosc202.andie.BatchProcessor macro.ops inputDir outputDir [threads]</code>
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @version 1.0
+ */
+public class BatchProcessor {
+
+    /**
+     * <p>
+     * The outcome of a batch: how many images were processed and how quickly.
+     * </p>
+     */
+    public static class Result {
+
+        /** The number of images written. */
+        private final int processed;
+        /** The number of images that failed. */
+        private final int failed;
+        /** The total size of the input files that were processed, in bytes. */
+        private final long bytes;
+        /** The time the batch took, in nanoseconds. */
+        private final long nanos;
+
+        /**
+         * <p>
+         * Create a Result.
+         * </p>
+         *
+         * @param processed The number of images written.
+         * @param failed The number of images that failed.
+         * @param bytes The total size of the input files that were processed.
+         * @param nanos The time the batch took, in nanoseconds.
+         */
+        Result(int processed, int failed, long bytes, long nanos) {
+            this.processed = processed;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * <p>
+         * Get the number of images written.
+         * </p>
+         *
+         * @return The number of images processed successfully.
+         */
+        public int getProcessed() {
+            return processed;
+        }
+
+        /**
+         * <p>
+         * Get the number of images that failed.
+         * </p>
+         *
+         * @return The number of images that could not be read, processed or written.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * <p>
+         * Get the time the batch took.
+         * </p>
+         *
+         * @return The elapsed time in seconds.
+         */
+        public double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        /**
+         * <p>
+         * Describe the batch's throughput.
+         * </p>
+         *
+         * @return A one-line report.
+         */
+        @Override
+        public String toString() {
+            double seconds = Math.max(getSeconds(), 1e-9);
+            return String.format("Processed %d images (%d failed) in %.2f s: %.2f images/s, %.2f MB/s",
+                    processed, failed, seconds, processed / seconds, bytes / (1024.0 * 1024.0) / seconds);
+        }
+    }
+
+    /** The encoded macro, decoded again for each image. */
+    private final byte[] macro;
+    /** The directory of images to process. */
+    private final File inputDir;
+    /** The directory to write processed images to. */
+    private final File outputDir;
+    /** The number of threads in each of the I/O and processing pools. */
+    private final int threads;
+
+    /**
+     * <p>
+     * Create a BatchProcessor.
+     * </p>
+     *
+     * @param macroFile The macro to apply, as saved by ANDIE.
+     * @param inputDir The directory of images to process.
+     * @param outputDir The directory to write processed images to, which is created if needed.
+     * @param threads The number of threads in each of the I/O and processing pools.
+     * @throws IOException If the macro file could not be read.
+     */
+    public BatchProcessor(File macroFile, File inputDir, File outputDir, int threads) throws IOException {
+        this.macro = Files.readAllBytes(macroFile.toPath());
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.threads = Math.max(1, threads);
+        // Check the macro can be read before starting
+        OperationCodec.load(new ByteArrayInputStream(macro));
+    }
+
+    /**
+     * <p>
+     * Process every image in the input directory.
+     * </p>
+     *
+     * @return A summary of the batch.
+     * @throws IOException If the input directory could not be listed or the output directory created.
+     * @throws InterruptedException If interrupted while waiting for the batch.
+     */
+    public Result run() throws IOException, InterruptedException {
+        File[] inputs = inputDir.listFiles(BatchProcessor::isImage);
+        if (inputs == null) {
+            throw new IOException("Cannot list " + inputDir);
+        }
+        Arrays.sort(inputs);
+        Files.createDirectories(outputDir.toPath());
+
+        ExecutorService io = Executors.newFixedThreadPool(threads);
+        ExecutorService compute = Executors.newFixedThreadPool(threads);
+        // Enough images in flight to keep both pools busy, but no more
+        int limit = 2 * threads;
+        Semaphore inFlight = new Semaphore(limit);
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        long start = System.nanoTime();
+        try {
+            for (File input : inputs) {
+                inFlight.acquire();
+                File output = new File(outputDir, input.getName());
+                CompletableFuture.supplyAsync(() -> read(input), io)
+                        .thenApplyAsync(image -> OperationPipeline.apply(image, loadMacro()), compute)
+                        .thenAcceptAsync(image -> write(image, output), io)
+                        .handle((done, ex) -> {
+                            if (ex == null) {
+                                processed.incrementAndGet();
+                                bytes.addAndGet(input.length());
+                            } else {
+                                failed.incrementAndGet();
+                                Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+                                System.err.println(input.getName() + ": " + cause);
+                            }
+                            inFlight.release();
+                            return null;
+                        });
+            }
+            // Every image has finished once all of the places are free again, so no futures need be kept
+            inFlight.acquire(limit);
+        } finally {
+            io.shutdown();
+            compute.shutdown();
+        }
+        return new Result(processed.get(), failed.get(), bytes.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * <p>
+     * Decode a fresh copy of the macro's operations.
+     * </p>
+     *
+     * @return The operations, in the order they are applied.
+     */
+    private List<ImageOperation> loadMacro() {
+        try {
+            return OperationCodec.load(new ByteArrayInputStream(macro));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Decode an image.
+     * </p>
+     *
+     * @param input The image file.
+     * @return The image.
+     */
+    static BufferedImage read(File input) {
+        try {
+            BufferedImage image = ImageIO.read(input);
+            if (image == null) {
+                throw new IOException("Not a readable image");
+            }
+            return PixelBuffer.toWorkingType(image);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Encode an image, in the format given by the file's extension.
+     * </p>
+     *
+     * @param image The image.
+     * @param output The file to write.
+     */
+    static void write(BufferedImage image, File output) {
+        String name = output.getName();
+        String extension = name.substring(1 + name.lastIndexOf(".")).toLowerCase();
+        try {
+            if (!ImageIO.write(PixelBuffer.toWritableType(image, extension), extension, output)) {
+                throw new IOException("No " + extension + " writer for this image");
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Check whether a file looks like an image ANDIE can read.
+     * </p>
+     *
+     * @param file The file.
+     * @return True if it is a file with an extension ImageIO can read.
+     */
+    private static boolean isImage(File file) {
+        String name = file.getName();
+        String extension = name.substring(1 + name.lastIndexOf(".")).toLowerCase();
+        return file.isFile() && Arrays.asList(ImageIO.getReaderFileSuffixes()).contains(extension);
+    }
+
+    /**
+     * <p>
+     * Run a batch from the command line, printing its throughput.
+     * </p>
+     *
+     * @param args The macro file, input directory, output directory and, optionally, the number of threads.
+     * @throws Exception If the batch could not be run.
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: java cosc202.andie.BatchProcessor macro.ops inputDir outputDir [threads]");
+            System.exit(2);
+        }
+        int threads = (args.length == 4) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        BatchProcessor batch = new BatchProcessor(new File(args[0]), new File(args[1]), new File(args[2]), threads);
+        Result result = batch.run();
+        System.out.println(result);
+        if (result.getFailed() > 0) {
+            System.exit(1);
+        }
+    }
+
+}
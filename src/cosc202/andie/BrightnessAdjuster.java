@@ -1,6 +1,7 @@
 package cosc202.andie;
 
 import java.awt.image.*;
+import java.util.List;
 
 /**
  * <p>
@@ -21,13 +22,17 @@ import java.awt.image.*;
  * @version 1.0
  */
 
-public class BrightnessAdjuster implements ImageOperation, java.io.Serializable{
+public class BrightnessAdjuster implements PointOperation, java.io.Serializable{
 
     /**
      * the brightness to adjust the image by.
      */
     private double contrastPercent;
     private double brightPercent;
+    /**
+     * The adjustment as a lookup table, built when first needed.
+     */
+    private transient int[] table;
     /**
      * Default Constructor
      */
@@ -51,38 +56,52 @@ public class BrightnessAdjuster implements ImageOperation, java.io.Serializable{
      * @return The resulting adjusted image.
      */
     public BufferedImage apply(BufferedImage input) {
-        
-        // Loop through image pixel by pixel and finds argb values at (x, y)
-        for (int y = 0; y < input.getHeight(); ++y) {
-            for (int x = 0; x < input.getWidth(); ++x) {
-                int argb = input.getRGB(x, y);
-                int a = (argb & 0xFF000000) >> 24;
-                int r = (argb & 0x00FF0000) >> 16;
-                int g = (argb & 0x0000FF00) >> 8;
-                int b = (argb & 0x000000FF);
-
-                // Adjusting rgb values according to formula given
-                double contrastAdjuster = (1 + (contrastPercent / 100));
-                double brightAdjuster = (1 + (brightPercent / 100));
-                double newR = r - 127.5;
-                double newG = g - 127.5;
-                double newB = b - 127.5;
-                r = (int) Math.round((contrastAdjuster * newR) + (127.5 * brightAdjuster));
-                g = (int) Math.round((contrastAdjuster * newG) + (127.5 * brightAdjuster));
-                b = (int) Math.round((contrastAdjuster * newB) + (127.5 * brightAdjuster));
+        return new PointOperationChain(List.of(this)).apply(input);
+    }
 
-                // Clip RGB values to range [0, 255]
-                r = Math.min(Math.max(r, 0), 255);
-                g = Math.min(Math.max(g, 0), 255);
-                b = Math.min(Math.max(b, 0), 255);
+    /**
+     * <p>
+     * Adjust a single pixel, leaving its alpha unchanged.
+     * </p>
+     * 
+     * @param argb The pixel's value.
+     * @return The adjusted value.
+     */
+    public int filterRGB(int argb) {
+        int[] table = getLookupTable();
+        return (argb & 0xFF000000) | (table[(argb >> 16) & 0xFF] << 16) | (table[(argb >> 8) & 0xFF] << 8) | table[argb & 0xFF];
+    }
 
-                // Setting pixel to new rgb values
-                argb = (a << 24) | (r << 16) | (g << 8) | b;
-                input.setRGB(x, y, argb);
+    /**
+     * <p>
+     * Get the adjustment as a table of the new value for each red, green and blue value.
+     * </p>
+     * 
+     * @return The lookup table.
+     */
+    public int[] getLookupTable() {
+        if (table == null) {
+            // Adjusting rgb values according to formula given
+            double contrastAdjuster = (1 + (contrastPercent / 100));
+            double brightAdjuster = (1 + (brightPercent / 100));
+            int[] newTable = new int[256];
+            for (int v = 0; v < 256; ++v) {
+                int adjusted = (int) Math.round((contrastAdjuster * (v - 127.5)) + (127.5 * brightAdjuster));
+                // Clip values to range [0, 255]
+                newTable[v] = Math.min(Math.max(adjusted, 0), 255);
             }
+            table = newTable;
         }
+        return table;
+    }
+
+    /**
+     * Get the brightness adjustment.
+     * 
+     * @return The percentage to adjust the brightness by.
+     */
+    public double getBrightness() {
+        return brightPercent;
+    }
 
-        return input;
-    };
-    
 }
@@ -0,0 +1,71 @@
+package cosc202.andie;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * Apply a saved operations file to an image from the command line, without a GUI.
+ * </p>
+ *
+ * <p>
+ * Running <code>andie --ops edit.ops in.jpg out.png</code> reads the operations (as saved in a 
+ * <code>.ops</code> or macro file), applies them to <code>in.jpg</code> through an 
+ * {@link OperationPipeline}, and writes the result to <code>out.png</code> in the format given 
+ * by its extension. AWT runs headless and no Swing, look and feel, icons or language bundle is
+ * loaded, so this starts quickly and works on servers and in containers with no display.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @see Andie#main(String[])
+ * @version 1.0
+ */
+public class CommandLine {
+
+    /** The argument that selects command-line mode. */
+    public static final String OPS_OPTION = "--ops";
+
+    /** The exit status for success. */
+    public static final int SUCCESS = 0;
+    /** The exit status when the image could not be processed. */
+    public static final int FAILURE = 1;
+    /** The exit status when the arguments are wrong. */
+    public static final int USAGE = 2;
+
+    /**
+     * <p>
+     * Run the command line mode.
+     * </p>
+     *
+     * @param args The arguments: <code>--ops</code>, the operations file, the input image and the output image.
+     * @return The exit status.
+     */
+    public static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length != 4 || !args[0].equals(OPS_OPTION)) {
+            System.err.println("Usage: andie --ops edit.ops in.jpg out.png");
+            return USAGE;
+        }
+        try {
+            List<ImageOperation> ops;
+            try (InputStream in = new FileInputStream(args[1])) {
+                ops = OperationCodec.load(in);
+            }
+            BufferedImage image = BatchProcessor.read(new File(args[2]));
+            image = OperationPipeline.apply(image, ops);
+            BatchProcessor.write(image, new File(args[3]));
+            return SUCCESS;
+        } catch (IOException ex) {
+            System.err.println("andie: " + ex.getMessage());
+            return FAILURE;
+        } catch (UncheckedIOException ex) {
+            System.err.println("andie: " + ex.getCause().getMessage());
+            return FAILURE;
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package cosc202.andie;
 
 import java.awt.image.*;
+import java.util.List;
 
 /**
  * <p>
@@ -20,7 +21,7 @@ import java.awt.image.*;
  * @author Steven Mills
  * @version 1.0
  */
-public class ConvertToGrey implements ImageOperation, java.io.Serializable {
+public class ConvertToGrey implements PointOperation, java.io.Serializable {
 
     /**
      * <p>
@@ -47,23 +48,26 @@ public class ConvertToGrey implements ImageOperation, java.io.Serializable {
      * @return The resulting greyscale image.
      */
     public BufferedImage apply(BufferedImage input) {
-  
-        for (int y = 0; y < input.getHeight(); ++y) {
-            for (int x = 0; x < input.getWidth(); ++x) {
-                int argb = input.getRGB(x, y);
-                int a = (argb & 0xFF000000) >> 24;
-                int r = (argb & 0x00FF0000) >> 16;
-                int g = (argb & 0x0000FF00) >> 8;
-                int b = (argb & 0x000000FF);
+        return new PointOperationChain(List.of(this)).apply(input);
+    }
+
+    /**
+     * <p>
+     * Convert a single pixel to greyscale, leaving its alpha unchanged.
+     * </p>
+     * 
+     * @param argb The pixel's value.
+     * @return The greyscale value.
+     */
+    public int filterRGB(int argb) {
+        int a = (argb & 0xFF000000) >> 24;
+        int r = (argb & 0x00FF0000) >> 16;
+        int g = (argb & 0x0000FF00) >> 8;
+        int b = (argb & 0x000000FF);
 
-                int grey = (int) Math.round(0.3*r + 0.6*g + 0.1*b);
+        int grey = (int) Math.round(0.3*r + 0.6*g + 0.1*b);
 
-                argb = (a << 24) | (grey << 16) | (grey << 8) | grey;
-                input.setRGB(x, y, argb);
-            }
-        }
-        
-        return input;
+        return (a << 24) | (grey << 16) | (grey << 8) | grey;
     }
     
 }
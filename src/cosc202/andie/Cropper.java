@@ -1,5 +1,6 @@
 package cosc202.andie;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 
 /**
@@ -83,5 +84,80 @@ public class Cropper implements ImageOperation , java.io.Serializable {
         return output ; 
 
     }
-    
+
+    /**
+     * <p>
+     * Returns the size of the cropped image, which is the size of the crop area. 
+     * </p>
+     * 
+     * @param width the width of the input image
+     * @param height the height of the input image
+     * @return the size of the crop area
+     */
+    @Override
+    public Dimension getResultSize ( int width , int height ) {
+        return new Dimension( newWidth , newHeight ) ; 
+    }
+
+    /**
+     * <p>
+     * Returns the same crop with its area scaled, for previewing on a scaled copy of the image. 
+     * </p>
+     * 
+     * @param scale the size of the scaled image relative to the full-size one
+     * @return the scaled crop, at least one pixel in size
+     */
+    @Override
+    public ImageOperation atScale ( double scale ) {
+
+        // rounding down keeps the scaled area inside a scaled image whose size was also rounded down
+        return new Cropper( (int) ( xPos * scale ) , (int) ( yPos * scale ) , 
+                Math.max( 1 , (int) ( newWidth * scale ) ) , Math.max( 1 , (int) ( newHeight * scale ) ) ) ; 
+
+    }
+
+    /**
+     * <p>
+     * Gets the x coordinate of the crop area.
+     * </p>
+     * 
+     * @return the x coordinate
+     */
+    public int getX () {
+        return xPos ; 
+    }
+
+    /**
+     * <p>
+     * Gets the y coordinate of the crop area.
+     * </p>
+     * 
+     * @return the y coordinate
+     */
+    public int getY () {
+        return yPos ; 
+    }
+
+    /**
+     * <p>
+     * Gets the width of the crop area.
+     * </p>
+     * 
+     * @return the width
+     */
+    public int getWidth () {
+        return newWidth ; 
+    }
+
+    /**
+     * <p>
+     * Gets the height of the crop area.
+     * </p>
+     * 
+     * @return the height
+     */
+    public int getHeight () {
+        return newHeight ; 
+    }
+
 }
@@ -3,6 +3,7 @@ package cosc202.andie;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
@@ -73,8 +74,9 @@ public class DrawLine implements ImageOperation , java.io.Serializable {
      * 
      * <p>
      * Takes the input values and applies the line correspondingly. 
-     * Brush size and and line placement are done here, alongwith the raster 
-     * checking to make sure the bufferedImage matches the previous version. 
+     * Brush size and and line placement are done here. The line is drawn 
+     * directly onto the input image, as only the pixels in 
+     * {@link #getAffectedRegion()} change, so no copy of the image is made. 
      * </p>
      * 
      * @param input the image to be drawn on
@@ -82,14 +84,115 @@ public class DrawLine implements ImageOperation , java.io.Serializable {
      */
     public BufferedImage apply ( BufferedImage input ) {
         
-        BufferedImage filteredImage = new BufferedImage( input.getColorModel() , input.copyData(null) , input.isAlphaPremultiplied() , null ) ;
-        Graphics2D g2d = filteredImage.createGraphics() ; 
+        Graphics2D g2d = input.createGraphics() ; 
         g2d.setColor( color ) ; 
         g2d.setStroke( new BasicStroke( slider ) ) ;
         g2d.drawLine( xPos , yPos , newWidth , newHeight ) ; 
-        BufferedImage output = new BufferedImage( filteredImage.getColorModel() , filteredImage.copyData( filteredImage.getRaster().createCompatibleWritableRaster() ) , filteredImage.isAlphaPremultiplied() , null ) ; 
-        return output ; 
+        g2d.dispose() ; 
+        return input ; 
 
     }
-    
+
+    /**
+     * <p>
+     * Returns the bounds of the line, padded by the brush size to allow 
+     * for the width and end caps of the stroke. 
+     * </p>
+     * 
+     * @return the region of the image the line may cover
+     */
+    @Override
+    public Rectangle getAffectedRegion () {
+
+        Rectangle region = new Rectangle( Math.min( xPos , newWidth ) , Math.min( yPos , newHeight ) , 
+                                          Math.abs( newWidth - xPos ) + 1 , Math.abs( newHeight - yPos ) + 1 ) ; 
+        region.grow( slider + 1 , slider + 1 ) ; 
+        return region ; 
+
+    }
+
+    /**
+     * <p>
+     * Returns the same line with its position, size and brush size scaled, 
+     * for previewing on a scaled copy of the image. 
+     * </p>
+     * 
+     * @param scale the size of the scaled image relative to the full-size one
+     * @return the scaled line
+     */
+    @Override
+    public ImageOperation atScale ( double scale ) {
+
+        return new DrawLine( (int) Math.round( xPos * scale ) , (int) Math.round( yPos * scale ) , 
+                (int) Math.round( newWidth * scale ) , (int) Math.round( newHeight * scale ) , 
+                color , Math.max( 1 , (int) Math.round( slider * scale ) ) ) ; 
+
+    }
+
+    /**
+     * <p>
+     * Gets the x coordinate of the line.
+     * </p>
+     * 
+     * @return the x coordinate
+     */
+    public int getX () {
+        return xPos ; 
+    }
+
+    /**
+     * <p>
+     * Gets the y coordinate of the line.
+     * </p>
+     * 
+     * @return the y coordinate
+     */
+    public int getY () {
+        return yPos ; 
+    }
+
+    /**
+     * <p>
+     * Gets the width of the line.
+     * </p>
+     * 
+     * @return the width
+     */
+    public int getWidth () {
+        return newWidth ; 
+    }
+
+    /**
+     * <p>
+     * Gets the height of the line.
+     * </p>
+     * 
+     * @return the height
+     */
+    public int getHeight () {
+        return newHeight ; 
+    }
+
+    /**
+     * <p>
+     * Gets the colour of the line.
+     * </p>
+     * 
+     * @return the colour
+     */
+    public Color getColor () {
+        return color ; 
+    }
+
+    /**
+     * <p>
+     * Gets the brush size of the line.
+     * </p>
+     * 
+     * @return the brush size
+     */
+    public int getSlider () {
+        return slider ; 
+    }
+
 }
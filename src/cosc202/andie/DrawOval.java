@@ -3,6 +3,7 @@ package cosc202.andie;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
@@ -79,7 +80,8 @@ public class DrawOval implements ImageOperation , java.io.Serializable {
      * 
      * <p>
      * Oval is drawn using the parameters passed to the method. Brush size can 
-     * be determined, along with the color. 
+     * be determined, along with the color. The oval is drawn directly onto the 
+     * input image, as only the pixels in {@link #getAffectedRegion()} change. 
      * </p>
      * 
      * @param input the image to be drawn on
@@ -87,8 +89,7 @@ public class DrawOval implements ImageOperation , java.io.Serializable {
      */
     public BufferedImage apply ( BufferedImage input ) {
         
-        BufferedImage filteredImage = new BufferedImage( input.getColorModel() , input.copyData(null) , input.isAlphaPremultiplied() , null ) ;
-        Graphics2D g2d = filteredImage.createGraphics() ; 
+        Graphics2D g2d = input.createGraphics() ; 
         g2d.setColor( color ) ;
         g2d.setStroke( new BasicStroke( slider ) ) ; 
         if ( fill == false ) {
@@ -96,9 +97,121 @@ public class DrawOval implements ImageOperation , java.io.Serializable {
         } else {
             g2d.fillOval( xPos , yPos , newWidth , newHeight ) ; 
         }
-        BufferedImage output = new BufferedImage( filteredImage.getColorModel() , filteredImage.copyData( filteredImage.getRaster().createCompatibleWritableRaster() ) , filteredImage.isAlphaPremultiplied() , null ) ; 
-        return output ; 
+        g2d.dispose() ; 
+        return input ; 
 
     }
-    
+
+    /**
+     * <p>
+     * Returns the bounds of the oval, padded by the brush size to allow 
+     * for the width of the stroke. 
+     * </p>
+     * 
+     * @return the region of the image the oval may cover
+     */
+    @Override
+    public Rectangle getAffectedRegion () {
+
+        Rectangle region = new Rectangle( xPos , yPos , newWidth + 1 , newHeight + 1 ) ; 
+        region.grow( slider + 1 , slider + 1 ) ; 
+        return region ; 
+
+    }
+
+    /**
+     * <p>
+     * Returns the same oval with its position, size and brush size scaled, 
+     * for previewing on a scaled copy of the image. 
+     * </p>
+     * 
+     * @param scale the size of the scaled image relative to the full-size one
+     * @return the scaled oval
+     */
+    @Override
+    public ImageOperation atScale ( double scale ) {
+
+        return new DrawOval( (int) Math.round( xPos * scale ) , (int) Math.round( yPos * scale ) , 
+                (int) Math.round( newWidth * scale ) , (int) Math.round( newHeight * scale ) , 
+                color , Math.max( 1 , (int) Math.round( slider * scale ) ) , fill ) ; 
+
+    }
+
+    /**
+     * <p>
+     * Gets the x coordinate of the oval.
+     * </p>
+     * 
+     * @return the x coordinate
+     */
+    public int getX () {
+        return xPos ; 
+    }
+
+    /**
+     * <p>
+     * Gets the y coordinate of the oval.
+     * </p>
+     * 
+     * @return the y coordinate
+     */
+    public int getY () {
+        return yPos ; 
+    }
+
+    /**
+     * <p>
+     * Gets the width of the oval.
+     * </p>
+     * 
+     * @return the width
+     */
+    public int getWidth () {
+        return newWidth ; 
+    }
+
+    /**
+     * <p>
+     * Gets the height of the oval.
+     * </p>
+     * 
+     * @return the height
+     */
+    public int getHeight () {
+        return newHeight ; 
+    }
+
+    /**
+     * <p>
+     * Gets the colour of the oval.
+     * </p>
+     * 
+     * @return the colour
+     */
+    public Color getColor () {
+        return color ; 
+    }
+
+    /**
+     * <p>
+     * Gets the brush size of the oval.
+     * </p>
+     * 
+     * @return the brush size
+     */
+    public int getSlider () {
+        return slider ; 
+    }
+
+    /**
+     * <p>
+     * Gets whether the oval is filled.
+     * </p>
+     * 
+     * @return true if the oval is filled
+     */
+    public boolean isFilled () {
+        return fill ; 
+    }
+
 }
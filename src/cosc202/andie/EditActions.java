@@ -39,6 +39,7 @@ public class EditActions implements KeyListener{
         actions = new ArrayList<Action>();
         actions.add(new UndoAction( Andie.getLanguage("undo") , null, Andie.getLanguage("undo") , Integer.valueOf(KeyEvent.VK_Z)));
         actions.add(new RedoAction( Andie.getLanguage("redo") , null, Andie.getLanguage("redo") , Integer.valueOf(KeyEvent.VK_Y)));
+        actions.add(new NextVariantAction( Andie.getLanguage("next_variant") , null, Andie.getLanguage("next_variant_desc") , Integer.valueOf(KeyEvent.VK_D)));
         actions.add(new MacroAction( Andie.getLanguage("record") , null, Andie.getLanguage("record_desc") , Integer.valueOf(KeyEvent.VK_PERIOD)));
         actions.add(new ApplyMacro( Andie.getLanguage("apply_macro") , null, Andie.getLanguage("apply_macro_desc") , Integer.valueOf(KeyEvent.VK_COMMA)));
     }
@@ -176,6 +177,56 @@ public class EditActions implements KeyListener{
         }
     }
 
+    /**
+     * <p>
+     * Action to switch to another variant of the most recent {@link ImageOperation}.
+     * </p>
+     * 
+     * @see EditableImage#nextVariant()
+     */
+    public class NextVariantAction extends ImageAction {
+
+        /** The version of this class, for serialisation. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * <p>
+         * Create a new next variant action.
+         * </p>
+         * 
+         * @param name The name of the action (ignored if null).
+         * @param icon An icon to use to represent the action (ignored if null).
+         * @param desc A brief description of the action  (ignored if null).
+         * @param mnemonic A mnemonic key to use as a shortcut  (ignored if null).
+         */
+        NextVariantAction(String name, ImageIcon icon, String desc, Integer mnemonic) {
+            super(name, icon, desc, mnemonic);
+        }
+
+        /**
+         * <p>
+         * Callback for when the next variant action is triggered.
+         * </p>
+         * 
+         * <p>
+         * This method is called whenever the NextVariantAction is triggered.
+         * If other operations were applied in place of the most recent one (after undoing it),
+         * it switches to the next of them.
+         * </p>
+         * 
+         * @param e The event triggering this callback.
+         */
+        public void actionPerformed(ActionEvent e) {
+            if (!target.getImage().nextVariant()) {
+                JOptionPane.showMessageDialog(null, Andie.getLanguage("error_no_variants"), Andie.getLanguage("error_title"), JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            Andie.getFrame().setSize( target.getWidth() , target.getHeight() ) ;
+            target.repaint();
+            target.getParent().revalidate();
+        }
+    }
+
      /**
      * <p>
      * Action to start and stop recording macros in an {@link ImageOperation}.
@@ -2,9 +2,18 @@ package cosc202.andie;
 
 import java.util.*;
 import java.io.*;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.*;
 import javax.imageio.*;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
 
 /**
  * <p>
@@ -25,6 +34,67 @@ import javax.swing.JOptionPane;
  * being used to allow undone operations to be redone.
  * </p>
  * 
+ * <p>
+ * To avoid replaying every operation from the original image on each undo, rendered
+ * intermediate images are kept as keyframes at regular depths of the operation stack,
+ * under a memory budget. Replaying then starts from the nearest keyframe instead.
+ * Keyframes are stored in an {@link ImageCache} as tiles shared between neighbouring states,
+ * so a step that changes only part of the image costs memory only for that part.
+ * The budget (in megabytes) and the spacing of keyframes can be set with the
+ * <code>andie.snapshotBudgetMB</code> and <code>andie.keyframeInterval</code> system properties.
+ * </p>
+ * 
+ * <p>
+ * Keyframes that no longer fit in the memory budget are spilled to memory-mapped temporary files
+ * and paged back in when an undo needs them, which is still much faster than replaying from the 
+ * original. The disk space used is limited by <code>andie.spillBudgetMB</code> (4096 by default,
+ * and 0 turns spilling off), and the files are deleted when ANDIE exits.
+ * </p>
+ * 
+ * <p>
+ * Images displaced by an undo are also kept, under their own budget 
+ * (<code>andie.redoBudgetMB</code>), so that redoing does not have to recompute them.
+ * </p>
+ * 
+ * <p>
+ * The history is a tree of {@link HistoryNode}s rather than a single undo stack: applying an operation
+ * after an undo starts a new branch and keeps the old one, which {@link #nextVariant} can switch back to.
+ * Keyframes and undone images are cached under the node they belong to rather than under a depth, so 
+ * branches share the keyframes of the states before they fork, and switching between two variants 
+ * only recomputes from the fork point.
+ * </p>
+ * 
+ * <p>
+ * Applying an operation does not compute anything straight away. The operation is added to the
+ * stack as pending, and pending operations are only rendered, together, when the pixels are next
+ * needed by {@link #getCurrentImage()}. Several operations applied in a row (such as by a macro or a 
+ * script) are therefore rendered through a single {@link OperationPipeline}, and a pending operation
+ * that is undone before anything looks at it is never computed at all.
+ * </p>
+ * 
+ * <p>
+ * Pending operations can also be rendered on a background thread with {@link #renderInBackground},
+ * so that slow filters do not freeze the user interface. The result is only published back
+ * to the image, on the event dispatch thread, once it is complete.
+ * </p>
+ * 
+ * <p>
+ * For images larger than <code>andie.previewSize</code> pixels (2048 by default) along either side, 
+ * a downscaled proxy of the original is also kept. {@link #getPreviewImage()} renders the operations 
+ * on the proxy, each adjusted by {@link ImageOperation#atScale(double)}, which is quick enough to show 
+ * while the full-size image is rendered in the background or until it is saved or exported.
+ * </p>
+ * 
+ * <p>
+ * Saved results are also kept in a {@link RenderCache} on disk, so reopening an image that was edited
+ * before starts from its rendered state instead of replaying every operation.
+ * </p>
+ * 
+ * <p>
+ * Changes to the operation stack between saves are appended to an {@link OperationJournal} beside
+ * the <code>.ops</code> file, so that they can be recovered if ANDIE stops before they are saved.
+ * </p>
+ * 
  * <p> 
  * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
  * </p>
@@ -32,20 +102,28 @@ import javax.swing.JOptionPane;
  * @author Steven Mills
  * @version 1.0
  */
-class EditableImage {
+public class EditableImage {
 
     /** The original image. This should never be altered by ANDIE. */
     private BufferedImage original;
-    /** The current image, the result of applying {@link ops} to {@link original}. */
+    /** The current image, the result of applying the first {@link #rendered} of {@link #ops} to {@link #original}. */
     private BufferedImage current;
+    /** The number of operations reflected in {@link #current}. Any after these are pending. */
+    private int rendered;
     /** The sequence of operations currently applied to the image. */
     private Stack<ImageOperation> ops;
-    /** A memory of 'undone' operations to support 'redo'. */
-    private Stack<ImageOperation> redoOps;
+    /** The current state in the history of operations. The path to it from the root holds {@link #ops}. */
+    private HistoryNode head;
+    /** The state that was last saved or opened. */
+    private HistoryNode savedNode;
     /** The file where the original image is stored/ */
     private String imageFilename;
     /** The file where the operation sequence is stored. */
     private String opsFilename;
+    /** The file {@link #original} was last read from or written to, or null if there is none. */
+    private File sourceFile;
+    /** The modification time and length of {@link #sourceFile} at that point, to tell whether it has changed since. */
+    private long sourceModified, sourceLength;
     /** String of characters which cannot appear in a file name. */
     private String unacceptableCharacters = "#%&{}\"<>*?/ $!\'\\:@+`|=" ; 
 
@@ -56,6 +134,32 @@ class EditableImage {
     /** Tracks the status of the macro operation */
     private boolean macroEnabled;
 
+    /** Rendered keyframes, keyed by the id of the {@link HistoryNode} they are the state of. */
+    private ImageCache<Long> snapshots;
+    /** The number of operations between keyframes. */
+    private int keyframeInterval;
+    /** Images displaced by {@link #undo}, keyed by the id of the {@link HistoryNode} they are the state of. */
+    private ImageCache<Long> redoImages;
+
+    /** Rendered states kept on disk between runs, or null if disabled. */
+    private RenderCache renderCache;
+    /** The {@link #renderCache} key of {@link #original}, or null if it has none. */
+    private String originalKey;
+
+    /** The record of changes to {@link #ops} since the last save, or null if no image is open. */
+    private OperationJournal journal;
+
+    /** The largest width or height of image that is shown without a proxy. */
+    private int previewSize;
+    /** A downscaled copy of {@link #original}, or null if the original is small enough to not need one. */
+    private BufferedImage proxyOriginal;
+    /** The size of {@link #proxyOriginal} relative to {@link #original}. */
+    private double proxyScale;
+    /** The proxy with {@link #proxyOps} applied. */
+    private BufferedImage proxyCurrent;
+    /** The operations (at full scale) that have been applied to {@link #proxyCurrent}. */
+    private List<ImageOperation> proxyOps;
+
     /**
      * <p>
      * Create a new EditableImage.
@@ -68,16 +172,39 @@ class EditableImage {
     public EditableImage() {
         original = null;
         current = null;
+        rendered = 0;
         ops = new Stack<ImageOperation>();
-        redoOps = new Stack<ImageOperation>();
+        head = new HistoryNode();
+        savedNode = head;
         imageFilename = null;
         opsFilename = null;
+        sourceFile = null;
 
         //Data fields related to macros
         macroOpsFilename = null;
         macroOps = new Stack<ImageOperation>();
         macroEnabled = false; 
 
+        // Keyframes of the rendered operation stack, by default up to a quarter of the heap
+        long defaultBudgetMB = Runtime.getRuntime().maxMemory() / (4 * 1024 * 1024);
+        snapshots = new ImageCache<Long>(Long.getLong("andie.snapshotBudgetMB", defaultBudgetMB) * 1024 * 1024,
+                Long.getLong("andie.spillBudgetMB", 4096) * 1024 * 1024);
+        keyframeInterval = Math.max(1, Integer.getInteger("andie.keyframeInterval", 4));
+        // Undone images, by default up to an eighth of the heap
+        redoImages = new ImageCache<Long>(Long.getLong("andie.redoBudgetMB", defaultBudgetMB / 2) * 1024 * 1024);
+        // Proxy for previewing large images
+        previewSize = Math.max(1, Integer.getInteger("andie.previewSize", 2048));
+        proxyOriginal = null;
+        proxyScale = 1.0;
+        proxyCurrent = null;
+        proxyOps = new ArrayList<ImageOperation>();
+        journal = null;
+        // Rendered states on disk, by default up to 1GB
+        long renderCacheMB = Long.getLong("andie.renderCacheMB", 1024);
+        File renderCacheDir = new File(System.getProperty("andie.renderCacheDir",
+                System.getProperty("user.home") + File.separator + ".andie" + File.separator + "render-cache"));
+        renderCache = (renderCacheMB > 0) ? new RenderCache(renderCacheDir, renderCacheMB * 1024 * 1024) : null;
+        originalKey = null;
     }
 
     /**
@@ -145,6 +272,17 @@ class EditableImage {
      * read the operations from <code>some/path/to/image.png.ops</code>.
      * </p>
      * 
+     * <p>
+     * Whatever type of image the file decodes to, it is converted to packed ARGB
+     * ({@link PixelBuffer#WORKING_TYPE}), so that every operation works on the same fast format.
+     * It is only converted back if a file format needs it when saving or exporting.
+     * </p>
+     * 
+     * <p>
+     * If there is a journal of changes that were never saved, at <code>some/path/to/image.png.ops.journal</code>,
+     * those changes are recovered and written to the <code>.ops</code> file.
+     * </p>
+     * 
      * @param filePath The file to open the image from.
      * @throws Exception If something goes wrong.
      */
@@ -152,31 +290,61 @@ class EditableImage {
         imageFilename = filePath;
         opsFilename = imageFilename + ".ops";
         File imageFile = new File(imageFilename);
-        original = ImageIO.read(imageFile);
+        original = PixelBuffer.toWorkingType(ImageIO.read(imageFile));
+        recordSource(imageFile);
+        originalKey = null;
+        if (renderCache != null) {
+            try {
+                originalKey = RenderCache.hash(imageFile);
+            } catch (IOException ex) {
+                // Carry on without the render cache.
+            }
+        }
         current = deepCopy(original);
+        rendered = 0;
+        snapshots.clear();
+        redoImages.clear();
+        makeProxy();
         
+        Stack<ImageOperation> redoOps = new Stack<ImageOperation>();
         try {
             FileInputStream fileIn = new FileInputStream(this.opsFilename);
-            ObjectInputStream objIn = new ObjectInputStream(fileIn);
-
-            // Silence the Java compiler warning about type casting.
-            // Understanding the cause of the warning is way beyond
-            // the scope of COSC202, but if you're interested, it has
-            // to do with "type erasure" in Java: the compiler cannot
-            // produce code that fails at this point in all cases in
-            // which there is actually a type mismatch for one of the
-            // elements within the Stack, i.e., a non-ImageOperation.
-            @SuppressWarnings("unchecked")
-            Stack<ImageOperation> opsFromFile = (Stack<ImageOperation>) objIn.readObject();
+            Stack<ImageOperation> opsFromFile = OperationCodec.load(fileIn);
             ops = opsFromFile;
-            redoOps.clear();
-            objIn.close();
             fileIn.close();
         } catch (Exception ex) {
             // Could be no file or something else. Carry on for now.
         }
+
+        // Any unsaved changes to the previous image are abandoned. Recover any that were not saved to
+        // this one before ANDIE last stopped, and fold them into the .ops file.
+        discardJournal();
+        File journalFile = new File(this.opsFilename + ".journal");
+        journal = new OperationJournal(journalFile);
+        try {
+            Stack<ImageOperation> recoveredOps = new Stack<ImageOperation>();
+            recoveredOps.addAll(ops);
+            Stack<ImageOperation> recoveredRedoOps = new Stack<ImageOperation>();
+            if (OperationJournal.replay(journalFile, recoveredOps, recoveredRedoOps)) {
+                ops = recoveredOps;
+                redoOps = recoveredRedoOps;
+                FileOutputStream fileOut = new FileOutputStream(this.opsFilename);
+                OperationCodec.write(fileOut, ops);
+                fileOut.close();
+                journal.delete();
+            }
+        } catch (IOException ex) {
+            // Could not read the journal or write the .ops file. Carry on, keeping the journal.
+        }
+        rebuildHistory(redoOps);
+        savedNode = head;
         this.refresh();
-        Andie.getFrame().setSize( getCurrentImage().getWidth() , getCurrentImage().getHeight() ) ; 
+        restoreRendered();
+        // Size the window without rendering the operations, which is left until the image is shown
+        if (Andie.getFrame() != null) {
+            Dimension size = getImageSize();
+            Andie.getFrame().setSize(size.width, size.height);
+        }
     }
 
     /**
@@ -188,7 +356,14 @@ class EditableImage {
      * Saves an image to the file it was opened from, or the most recent file saved as.
      * Also saves a set of operations from the file with <code>.ops</code> added.
      * So if you save to <code>some/path/to/image.png</code>, this method will also save
-     * the current operations to <code>some/path/to/image.png.ops</code>.
+     * the current operations to <code>some/path/to/image.png.ops</code>, in the binary format
+     * written by {@link OperationCodec}.
+     * Runs of flips and rotations are {@link OperationPipeline#simplify}d before saving.
+     * </p>
+     * 
+     * <p>
+     * Since the original image is never altered, it is only written if the file does not already 
+     * hold it. See {@link #writeOriginal}.
      * </p>
      * 
      * @throws Exception If something goes wrong.
@@ -197,15 +372,106 @@ class EditableImage {
         if (this.opsFilename == null) {
             this.opsFilename = this.imageFilename + ".ops";
         }
-        // Write image file based on file extension
-        String extension = imageFilename.substring(1+imageFilename.lastIndexOf(".")).toLowerCase();
-        ImageIO.write(original, extension, new File(imageFilename));
-        // Write operations file
+        writeOriginal(new File(imageFilename));
+        // Redundant flips and rotations are removed from the operations file
+        Stack<ImageOperation> savedOps = new Stack<ImageOperation>();
+        savedOps.addAll(OperationPipeline.simplify(this.ops));
+        // Keep the rendered result, so reopening does not have to replay the operations. It is keyed by
+        // the operations as saved, which render the same image, since those are the ones reopened.
+        if (renderCache != null && !savedOps.isEmpty() && rendered == ops.size()) {
+            String[] keys = RenderCache.prefixKeys(originalKey, savedOps);
+            if (!renderCache.contains(keys[savedOps.size()])) {
+                renderCache.put(keys[savedOps.size()], current);
+            }
+        }
         FileOutputStream fileOut = new FileOutputStream(this.opsFilename);
-        ObjectOutputStream objOut = new ObjectOutputStream(fileOut);
-        objOut.writeObject(this.ops);
-        objOut.close();
+        OperationCodec.write(fileOut, savedOps);
         fileOut.close();
+        savedNode = head;
+        // The journal's changes are now saved. If the saved stack was simplified, later entries must
+        // start from the stack in memory instead, but only once there are any.
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new OperationJournal(new File(this.opsFilename + ".journal"));
+        if (savedOps.equals(ops)) {
+            journal.delete();
+        } else {
+            journal.rebaseOnNextChange(ops);
+        }
+    }
+
+    /**
+     * <p>
+     * Write the original image to a file, if the file does not already hold it.
+     * </p>
+     * 
+     * <p>
+     * If the file is the one the original was read from (or last written to) and it has not changed 
+     * since, nothing is written. If the file is a different one of the same type, the source file's 
+     * bytes are copied as they are. Only otherwise is the original encoded again, based on the file 
+     * extension. As well as being much faster for large images, this avoids losing quality each time
+     * a lossy format such as JPEG is saved.
+     * </p>
+     * 
+     * @param imageFile The file to write to.
+     * @throws IOException If the file could not be written.
+     */
+    private void writeOriginal(File imageFile) throws IOException {
+        String extension = extensionOf(imageFile);
+        boolean sourceUnchanged = sourceFile != null && sourceFile.lastModified() == sourceModified
+                && sourceFile.length() == sourceLength;
+        if (sourceUnchanged && sourceFile.getAbsoluteFile().equals(imageFile.getAbsoluteFile())) {
+            return;
+        }
+        if (sourceUnchanged && extensionOf(sourceFile).equals(extension)) {
+            Files.copy(sourceFile.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            ImageIO.write(PixelBuffer.toWritableType(original, extension), extension, imageFile);
+        }
+        recordSource(imageFile);
+    }
+
+    /**
+     * <p>
+     * Remember a file as holding exactly the original image.
+     * </p>
+     * 
+     * @param imageFile The file that was read or written.
+     */
+    private void recordSource(File imageFile) {
+        sourceFile = imageFile;
+        sourceModified = imageFile.lastModified();
+        sourceLength = imageFile.length();
+    }
+
+    /**
+     * <p>
+     * Get the extension of a file's name, in lower case.
+     * </p>
+     * 
+     * @param file The file.
+     * @return The text after the last '.' in the name.
+     */
+    private static String extensionOf(File file) {
+        String name = file.getName();
+        return name.substring(1 + name.lastIndexOf(".")).toLowerCase();
+    }
+
+    /**
+     * <p>
+     * Delete the journal of unsaved changes, such as when they are deliberately abandoned on exit.
+     * </p>
+     * 
+     * <p>
+     * Without this, changes that were not saved are recovered the next time the image is opened.
+     * </p>
+     */
+    public void discardJournal() {
+        if (journal != null) {
+            journal.delete();
+            journal = null;
+        }
     }
 
     /**
@@ -218,12 +484,15 @@ class EditableImage {
      * Also saves a set of operations from the file with <code>.ops</code> added.
      * So if you save to <code>some/path/to/image.png</code>, this method will also save
      * the current operations to <code>some/path/to/image.png.ops</code>.
+     * If the new file is of the same type as the one the image was opened from, the image file
+     * is copied rather than encoded again.
      * </p>
      * 
      * @param imageFilename The file location to save the image to.
      * @throws Exception If something goes wrong.
      */
     public void saveAs(String imageFilename) throws Exception {
+        discardJournal();
         this.imageFilename = imageFilename;
         this.opsFilename = imageFilename + ".ops";
         save();
@@ -275,7 +544,7 @@ class EditableImage {
         if ( ! fileName.contains( "." ) ) {
 
             File outputFile = new File( imageFilename + ".jpeg" ) ; 
-            ImageIO.write( current , "jpeg" , outputFile ) ;
+            ImageIO.write( PixelBuffer.toWritableType( getCurrentImage() , "jpeg" ) , "jpeg" , outputFile ) ;
             return ; 
 
         } 
@@ -289,7 +558,7 @@ class EditableImage {
             String newImageFilename = fileLocation + fileName ; 
 
             File outputFile = new File( newImageFilename ) ; 
-            ImageIO.write( current , extension , outputFile ) ;  
+            ImageIO.write( PixelBuffer.toWritableType( getCurrentImage() , extension ) , extension , outputFile ) ;  
 
         } else {
 
@@ -297,7 +566,7 @@ class EditableImage {
             String newImageFilename = fileLocation + fileName ; 
 
             File outputFile = new File( newImageFilename ) ; 
-            ImageIO.write( current , "jpeg" , outputFile ) ; 
+            ImageIO.write( PixelBuffer.toWritableType( getCurrentImage() , "jpeg" ) , "jpeg" , outputFile ) ; 
 
         }
     
@@ -308,10 +577,40 @@ class EditableImage {
      * Apply an {@link ImageOperation} to this image.
      * </p>
      * 
+     * <p>
+     * The operation is only added to the stack here. It is rendered when the image is next needed.
+     * </p>
+     * 
      * @param op The operation to apply.
+     * @throws NullPointerException If no image is open.
      */
     public void apply(ImageOperation op) {
-        current = op.apply(current);
+        if (current == null) {
+            throw new NullPointerException("No image is open");
+        }
+        // Starting another branch from here makes this a fork point worth keeping
+        if (head.getRedoChild() != null && rendered == ops.size() && !ops.isEmpty()) {
+            keepKeyframe(ops.size());
+        }
+        head = head.addChild(op);
+        push(op);
+        if (journal != null) {
+            journal.apply(op);
+        }
+    }
+
+    /**
+     * <p>
+     * Push an {@link ImageOperation} on to the operation stack, as pending.
+     * </p>
+     * 
+     * <p>
+     * The caller moves {@link #head} to the state the operation produces.
+     * </p>
+     * 
+     * @param op The operation that was applied.
+     */
+    private void push(ImageOperation op) {
         ops.add(op);
         if(macroEnabled){
             macroOps.add(op);
@@ -322,27 +621,110 @@ class EditableImage {
      * <p>
      * Undo the last {@link ImageOperation} applied to the image.
      * </p>
+     * 
+     * <p>
+     * If the operation is still pending it is simply dropped. Otherwise, if it has an exact 
+     * {@link ImageOperation#inverse()}, the inverse is applied to {@link #current} directly, 
+     * or else the image is {@link #refresh}ed from the operation stack.
+     * Either way, the displaced image is kept so that a {@link #redo} can restore it.
+     * </p>
+     * 
+     * @throws EmptyStackException If there is nothing to undo.
      */
     public void undo() {
         ImageOperation operation = ops.pop();
-        redoOps.push(operation);
+        HistoryNode undone = head;
+        head = head.parent;
         if(macroEnabled){
             macroOps.push(operation);
         }
-        refresh();
+        if (journal != null) {
+            journal.undo();
+        }
+        if (rendered <= ops.size()) {
+            return;
+        }
+        redoImages.put(undone.id, current);
+        ImageOperation inverse = operation.inverse();
+        if (inverse != null) {
+            current = inverse.apply(current);
+            rendered = ops.size();
+        } else {
+            refresh();
+        }
     }
 
     /**
      * <p>
      * Reapply the most recently {@link undo}ne {@link ImageOperation} to the image.
      * </p>
+     * 
+     * <p>
+     * This follows the branch of the history that was most recently visited from the current state.
+     * If the image displaced by the undo is still cached it is restored as is,
+     * otherwise the operation is pending again.
+     * </p>
+     * 
+     * @throws EmptyStackException If there is nothing to redo.
      */
     public void redo()  {
-        ImageOperation operation = redoOps.pop();
+        HistoryNode next = head.getRedoChild();
+        if (next == null) {
+            throw new EmptyStackException();
+        }
+        ImageOperation operation = next.op;
         if(macroEnabled){
             macroOps.pop();
         }
-        apply(operation);
+        BufferedImage result = redoImages.get(next.id);
+        redoImages.remove(next.id);
+        head = next;
+        push(operation);
+        if (journal != null) {
+            journal.redo(operation);
+        }
+        if (result != null) {
+            current = result;
+            rendered = ops.size();
+            storeKeyframe(rendered);
+        }
+    }
+
+    /**
+     * <p>
+     * Switch to the next alternative to the most recent operation.
+     * </p>
+     * 
+     * <p>
+     * Each time an operation is applied after an undo, the history branches. This undoes the most 
+     * recent operation and redoes the next branch made from the same state instead, cycling back to the
+     * first after the last, so several variants (such as different blur radii) can be compared.
+     * Only the operations after the fork point are recomputed, and not even those if the variant's
+     * image is still cached from when it was last undone.
+     * </p>
+     * 
+     * @return True if there was another variant to switch to.
+     */
+    public boolean nextVariant() {
+        if (head.getSiblingCount() < 2) {
+            return false;
+        }
+        HistoryNode variant = head.nextSibling();
+        undo();
+        head.setRedoChild(variant);
+        redo();
+        return true;
+    }
+
+    /**
+     * <p>
+     * Get the number of alternatives to the most recent operation.
+     * </p>
+     * 
+     * @return The number of branches from the state before it, including the current one.
+     */
+    public int getVariantCount() {
+        return head.getSiblingCount();
     }
 
     /**
@@ -350,12 +732,304 @@ class EditableImage {
      * Get the current image after the operations have been applied.
      * </p>
      * 
+     * <p>
+     * Any pending operations are rendered first.
+     * </p>
+     * 
      * @return The result of applying all of the current operations to the {@link original} image.
      */
     public BufferedImage getCurrentImage() {
+        if (current != null) {
+            render();
+        }
         return current;
     }
 
+    /**
+     * <p>
+     * Get the image as it was last rendered, without rendering any pending operations.
+     * </p>
+     * 
+     * <p>
+     * This is what can be shown while the pending operations are being {@link #renderInBackground}ed.
+     * </p>
+     * 
+     * @return The most recently rendered image, which may not reflect all of the current operations.
+     */
+    public BufferedImage getRenderedImage() {
+        return current;
+    }
+
+    /**
+     * <p>
+     * Get the size of the current image, without rendering any pending operations.
+     * </p>
+     * 
+     * @return The size the image will be once every operation has been applied, 
+     *         as given by each pending operation's {@link ImageOperation#getResultSize(int, int)}.
+     */
+    public Dimension getImageSize() {
+        Dimension size = new Dimension(current.getWidth(), current.getHeight());
+        for (ImageOperation op : ops.subList(rendered, ops.size())) {
+            size = op.getResultSize(size.width, size.height);
+        }
+        return size;
+    }
+
+    /**
+     * <p>
+     * Get a quick, reduced-size preview of the current image.
+     * </p>
+     * 
+     * <p>
+     * For images with a proxy, the operations are rendered on the proxy instead of the full image.
+     * Only the operations that changed since the last preview are applied, unless an earlier one was 
+     * undone, in which case the proxy is rendered again from the start. For small images this is just
+     * {@link #getCurrentImage()}.
+     * </p>
+     * 
+     * @return The preview, which is {@link #getPreviewScale()} times the size of the current image.
+     */
+    public BufferedImage getPreviewImage() {
+        if (proxyOriginal == null) {
+            return getCurrentImage();
+        }
+        int common = 0;
+        while (common < proxyOps.size() && common < ops.size() && proxyOps.get(common) == ops.get(common)) {
+            common++;
+        }
+        if (common < proxyOps.size()) {
+            proxyCurrent = deepCopy(proxyOriginal);
+            proxyOps.clear();
+            common = 0;
+        }
+        List<ImageOperation> scaled = new ArrayList<ImageOperation>();
+        for (ImageOperation op : ops.subList(common, ops.size())) {
+            scaled.add(op.atScale(proxyScale));
+        }
+        proxyCurrent = OperationPipeline.apply(proxyCurrent, scaled);
+        proxyOps.addAll(ops.subList(common, ops.size()));
+        return proxyCurrent;
+    }
+
+    /**
+     * <p>
+     * Get the size of the {@link #getPreviewImage()} relative to the full image.
+     * </p>
+     * 
+     * @return The scale of the preview, which is 1 if the image has no proxy.
+     */
+    public double getPreviewScale() {
+        return proxyScale;
+    }
+
+    /**
+     * <p>
+     * Make the proxy of the original image, if it is large enough to need one.
+     * </p>
+     * 
+     * <p>
+     * The original is halved repeatedly, and then scaled the rest of the way, so that each 
+     * step averages neighbouring pixels rather than skipping over them.
+     * Sizes are rounded down, which {@link ImageOperation#atScale(double)} relies on.
+     * </p>
+     */
+    private void makeProxy() {
+        proxyOps.clear();
+        int largest = Math.max(original.getWidth(), original.getHeight());
+        if (largest <= previewSize) {
+            proxyOriginal = null;
+            proxyCurrent = null;
+            proxyScale = 1.0;
+            return;
+        }
+        proxyScale = (double) previewSize / largest;
+        int targetWidth = Math.max(1, (int) (original.getWidth() * proxyScale));
+        int targetHeight = Math.max(1, (int) (original.getHeight() * proxyScale));
+        int type = (original.getType() == BufferedImage.TYPE_CUSTOM) ? BufferedImage.TYPE_INT_ARGB : original.getType();
+        BufferedImage scaled = original;
+        do {
+            int width = Math.max(targetWidth, scaled.getWidth() / 2);
+            int height = Math.max(targetHeight, scaled.getHeight() / 2);
+            BufferedImage half = new BufferedImage(width, height, type);
+            Graphics2D g = half.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(scaled, 0, 0, width, height, null);
+            g.dispose();
+            scaled = half;
+        } while (scaled.getWidth() > targetWidth || scaled.getHeight() > targetHeight);
+        proxyOriginal = scaled;
+        proxyCurrent = deepCopy(proxyOriginal);
+    }
+
+    /**
+     * <p>
+     * Check whether any operations have been applied but not yet rendered.
+     * </p>
+     * 
+     * @return True if there are pending operations.
+     */
+    public boolean hasPending() {
+        return current != null && rendered < ops.size();
+    }
+
+    /**
+     * <p>
+     * Check whether any pending operation may change the whole image, rather than just a region of it.
+     * </p>
+     * 
+     * <p>
+     * Operations that report an {@link ImageOperation#getAffectedRegion()}, such as drawn shapes, 
+     * are applied in place and quick to render, so they are not worth copying the whole image 
+     * to {@link #renderInBackground}.
+     * </p>
+     * 
+     * @return True if a pending operation reports no affected region.
+     */
+    public boolean hasGlobalPending() {
+        if (!hasPending()) {
+            return false;
+        }
+        for (ImageOperation op : ops.subList(rendered, ops.size())) {
+            if (op.getAffectedRegion() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p>
+     * Render the pending operations on a background thread.
+     * </p>
+     * 
+     * <p>
+     * The operations are applied to a copy of the image, so the image can still be used (and even
+     * changed) while they run. When the render completes, its result becomes the current image,
+     * unless the pending operations were changed in the meantime, in which case it is thrown away.
+     * </p>
+     * 
+     * <p>
+     * Cancelling the returned worker, or an operation failing, {@link #undo}es the pending operations 
+     * instead, so they can be redone later. A failure is also reported to the user.
+     * Both callbacks are run on the event dispatch thread.
+     * </p>
+     * 
+     * @param progress Called with the percentage of operations done so far, or null.
+     * @param whenDone Called once the render has finished, been cancelled, or failed, or null.
+     * @return The worker doing the render, which has already been started.
+     */
+    public SwingWorker<BufferedImage, Integer> renderInBackground(IntConsumer progress, Runnable whenDone) {
+        final int first = rendered;
+        final List<ImageOperation> pending = new ArrayList<ImageOperation>(ops.subList(first, ops.size()));
+        final BufferedImage start = deepCopy(current);
+        SwingWorker<BufferedImage, Integer> worker = new SwingWorker<BufferedImage, Integer>() {
+
+            @Override
+            protected BufferedImage doInBackground() {
+                return OperationPipeline.apply(start, pending, (image, applied) -> {
+                    if (isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    publish(100 * applied / pending.size());
+                });
+            }
+
+            @Override
+            protected void process(List<Integer> chunks) {
+                if (progress != null) {
+                    progress.accept(chunks.get(chunks.size() - 1));
+                }
+            }
+
+            @Override
+            protected void done() {
+                boolean failed = false;
+                if (isCancelled()) {
+                    dropPending(first, pending);
+                } else {
+                    try {
+                        BufferedImage result = get();
+                        if (isPending(first, pending)) {
+                            current = result;
+                            rendered = first + pending.size();
+                            storeKeyframe(rendered);
+                        }
+                    } catch (InterruptedException | ExecutionException ex) {
+                        failed = true;
+                        dropPending(first, pending);
+                    }
+                }
+                if (whenDone != null) {
+                    whenDone.run();
+                }
+                // Tell the user once the image is back to the state before the failed operations
+                if (failed) {
+                    JOptionPane.showMessageDialog(null, Andie.getLanguage("error_render_failed"), Andie.getLanguage("error_title"), JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.execute();
+        return worker;
+    }
+
+    /**
+     * <p>
+     * Check whether a sequence of operations is still exactly what is pending from a given depth.
+     * </p>
+     * 
+     * @param first The number of operations that were rendered.
+     * @param pending The operations that were pending after those.
+     * @return True if {@link #current} is still rendered to the same depth and the operations after it are unchanged.
+     */
+    private boolean isPending(int first, List<ImageOperation> pending) {
+        if (rendered != first || ops.size() < first + pending.size()) {
+            return false;
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            if (ops.get(first + i) != pending.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Undo every operation after a given depth, if they are still pending.
+     * </p>
+     * 
+     * @param first The number of operations that were rendered.
+     * @param pending The operations that were pending after those.
+     */
+    private void dropPending(int first, List<ImageOperation> pending) {
+        if (isPending(first, pending)) {
+            while (ops.size() > first) {
+                undo();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Apply the pending operations to {@link #current}.
+     * </p>
+     * 
+     * <p>
+     * The operations are applied through an {@link OperationPipeline}, so runs of point operations
+     * such as brightness adjustments are done in a single pass, and runs of flips and rotations are
+     * simplified. Keyframes are only taken between the groups of operations the pipeline applies together.
+     * </p>
+     */
+    private void render() {
+        final int first = rendered;
+        current = OperationPipeline.apply(current, ops.subList(first, ops.size()), (image, applied) -> {
+            current = image;
+            rendered = first + applied;
+            storeKeyframe(rendered);
+        });
+    }
+
     /**
      * <p>
      * Reapply the current list of operations to the original.
@@ -363,18 +1037,104 @@ class EditableImage {
      * 
      * <p>
      * While the latest version of the image is stored in {@link current}, this
-     * method makes a fresh copy of the original and applies the operations to it in sequence.
+     * method makes a fresh copy of the original and marks every operation as pending again.
      * This is useful when undoing changes to the image, or in any other case where {@link current}
      * cannot be easily incrementally updated. 
      * </p>
+     * 
+     * <p>
+     * Rather than always starting from the original, the replay starts from a copy of the 
+     * deepest keyframe that is still valid for the current stack, so only the operations
+     * applied after it are recomputed when the image is next {@link #render}ed.
+     * </p>
      */
     private void refresh()  {
-        current = deepCopy(original);
-        for (ImageOperation op: ops) {
-            current = op.apply(current);
+        HistoryNode node = head;
+        BufferedImage keyframe = null;
+        while (node.depth > 0 && (keyframe = snapshots.get(node.id)) == null) {
+            node = node.parent;
+        }
+        current = (keyframe != null) ? keyframe : deepCopy(original);
+        rendered = node.depth;
+    }
+
+    /**
+     * <p>
+     * Keep a copy of {@link #current} as a keyframe if it was rendered at a keyframe depth,
+     * or at a point where the history branches.
+     * </p>
+     * 
+     * <p>
+     * If the previous keyframe is still cached and every operation since it reports an
+     * {@link ImageOperation#getAffectedRegion()}, only the tiles in those regions are compared and copied.
+     * </p>
+     * 
+     * @param depth The number of operations applied to produce {@link #current}.
+     */
+    private void storeKeyframe(int depth) {
+        if (depth % keyframeInterval == 0 || head.ancestor(depth).isFork()) {
+            keepKeyframe(depth);
         }
     }
 
+    /**
+     * <p>
+     * Keep a copy of {@link #current} as the keyframe of the state on the current path at a given depth.
+     * </p>
+     * 
+     * @param depth The number of operations applied to produce {@link #current}.
+     */
+    private void keepKeyframe(int depth) {
+        HistoryNode node = head.ancestor(depth);
+        if (snapshots.contains(node.id)) {
+            return;
+        }
+        int baseDepth = Math.max(0, depth - keyframeInterval);
+        Rectangle changed = null;
+        for (int i = baseDepth; i < depth && baseDepth > 0; i++) {
+            Rectangle region = ops.get(i).getAffectedRegion();
+            if (region == null) {
+                changed = null;
+                break;
+            }
+            changed = (changed == null) ? region : changed.union(region);
+        }
+        snapshots.put(node.id, current, head.ancestor(baseDepth).id, changed);
+    }
+
+    /**
+     * <p>
+     * Start from the deepest state of the operation stack in the {@link #renderCache}, if it is deeper than {@link #current}.
+     * </p>
+     */
+    private void restoreRendered() {
+        if (renderCache == null || originalKey == null) {
+            return;
+        }
+        String[] keys = RenderCache.prefixKeys(originalKey, ops);
+        for (int depth = ops.size(); depth > rendered; depth--) {
+            BufferedImage image = renderCache.get(keys[depth]);
+            if (image != null) {
+                // Entries stored by older versions of ANDIE may not be of the working type
+                current = PixelBuffer.toWorkingType(image);
+                rendered = depth;
+                storeKeyframe(rendered);
+                return;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Set the memory budget for keyframes of the operation stack.
+     * </p>
+     * 
+     * @param bytes The maximum number of bytes of keyframe images to keep.
+     */
+    public void setSnapshotBudget(long bytes) {
+        snapshots.setBudget(bytes);
+    }
+
     /**
      * <p>
      * Returns the current image filename for use in the main method to reopen the working image. 
@@ -439,9 +1199,7 @@ class EditableImage {
         }
         // Write operations file
         FileOutputStream fileOut = new FileOutputStream(this.macroOpsFilename);
-        ObjectOutputStream objOut = new ObjectOutputStream(fileOut);
-        objOut.writeObject(this.macroOps);
-        objOut.close();
+        OperationCodec.write(fileOut, this.macroOps);
         fileOut.close();
     }
 
@@ -467,81 +1225,86 @@ class EditableImage {
     * Selects a saved macro operation and applies it to an image.
     * </p>
     * 
+    * <p>
+    * Runs of flips and rotations in the macro are {@link OperationPipeline#simplify}d as it is loaded.
+    * </p>
+    * 
     * @param filePath The file to open the image from.
     * @throws Exception If something goes wrong.
     */
    public void openMacro(String filePath) throws Exception {
        macroOpsFilename = filePath;
        current = deepCopy(original);
+       rendered = 0;
        
        try {
            FileInputStream fileIn = new FileInputStream(this.macroOpsFilename);
-           ObjectInputStream objIn = new ObjectInputStream(fileIn);
-
-           // Silence the Java compiler warning about type casting.
-           // Understanding the cause of the warning is way beyond
-           // the scope of COSC202, but if you're interested, it has
-           // to do with "type erasure" in Java: the compiler cannot
-           // produce code that fails at this point in all cases in
-           // which there is actually a type mismatch for one of the
-           // elements within the Stack, i.e., a non-ImageOperation.
-           @SuppressWarnings("unchecked")
-           Stack<ImageOperation> opsFromFile = (Stack<ImageOperation>) objIn.readObject();
-           ops = opsFromFile;
-           redoOps.clear();
-           objIn.close();
+           Stack<ImageOperation> opsFromFile = OperationCodec.load(fileIn);
+           ops = new Stack<ImageOperation>();
+           ops.addAll(OperationPipeline.simplify(opsFromFile));
+           rebuildHistory(new Stack<ImageOperation>());
+           snapshots.clear();
+           redoImages.clear();
            fileIn.close();
+           if (journal != null) {
+               journal.rebase(ops);
+           }
        } catch (Exception ex) {
            // Could be no file or something else. Carry on for now.
        }
        this.refresh();
    }
     /**
-     * Calling this clears the ops, redoOps and macroOps stacks.
+     * Calling this clears the ops stack, the history and the macroOps stack.
      * Should only call this when absolutely needed, such as opening a new image.
      */
     public void clearOpsStack(){
         ops.clear();
-        redoOps.clear();
+        rendered = 0;
+        rebuildHistory(new Stack<ImageOperation>());
+        snapshots.clear();
+        redoImages.clear();
         if(getMacroStatus() == true){
             toggleMacro();
         }
         clearMacroOps();
    }
    
-   /**
-    * <p>
-    * Method checks that the saved ops stack matches the current one.
-    * </p>
-    * @return true if the two stacks match.
-    */
-   public boolean getSaveStatus(){
-    Stack<ImageOperation> savedOps = new Stack<ImageOperation>();
-    if(this.opsFilename == null){
-        this.opsFilename = this.imageFilename + ".ops";
-    }
-    try{
-        FileInputStream fileIn = new FileInputStream(this.opsFilename);
-        ObjectInputStream objIn = new ObjectInputStream(fileIn);
-        @SuppressWarnings("unchecked")
-        Stack<ImageOperation> opsFromFile = (Stack<ImageOperation>) objIn.readObject();
-        savedOps = opsFromFile;
-        objIn.close();
-        fileIn.close(); 
-    }catch(FileNotFoundException e){
-        System.out.println("File not found");
-        //Some exception, such as file not found.
-    }catch(IOException e){
-        System.out.println("Issues with getting that file.");
-    }catch(ClassNotFoundException e){
-        System.out.println("Class not found");
-        e.printStackTrace();
-    }
-
-    if(ops.equals(savedOps)){
-        return true;
+    /**
+     * <p>
+     * Check whether the operations have changed since the image was last saved or opened.
+     * </p>
+     * 
+     * <p>
+     * Each state of the operation stack is a {@link HistoryNode}, kept up to date through
+     * {@link #apply}, {@link #undo} and {@link #redo}, so this only compares two references. Undoing 
+     * back to the saved state counts as saved again, while applying a new operation never does.
+     * </p>
+     * 
+     * @return true if there are no unsaved changes.
+     */
+    public boolean getSaveStatus() {
+        // Every history's root is the original image, with no operations
+        return head == savedNode || (head.depth == 0 && savedNode.depth == 0);
+    }
+
+    /**
+     * <p>
+     * Start a new history holding the current operation stack, after it has been replaced as a whole.
+     * </p>
+     * 
+     * @param redoOps Operations that can be redone from the end of the stack, the next one on top.
+     */
+    private void rebuildHistory(Stack<ImageOperation> redoOps) {
+        head = new HistoryNode();
+        for (ImageOperation op : ops) {
+            head = head.addChild(op);
+        }
+        HistoryNode node = head;
+        for (int i = redoOps.size() - 1; i >= 0; i--) {
+            node = node.addChild(redoOps.get(i));
+        }
+        redoImages.clear();
     }
-    return false;
-   }
 
 }
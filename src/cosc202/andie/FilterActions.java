@@ -134,9 +134,7 @@ public class FilterActions implements KeyListener {
                 }
 
                 // Create and apply the filter
-                target.getImage().apply(new MeanFilter(radius));
-                target.repaint();
-                target.getParent().revalidate();
+                target.applyInBackground(new MeanFilter(radius));
 
             // if no image has been opened, caught by NullPointerException and shows error message
             } catch ( NullPointerException error ) {
@@ -192,9 +190,7 @@ public class FilterActions implements KeyListener {
 
             try { 
 
-                target.getImage().apply( new SharpenFilter() ) ; 
-                target.repaint() ; 
-                target.getParent().revalidate() ; 
+                target.applyInBackground( new SharpenFilter() ) ; 
 
             // if no image has been opened, caught by NullPointerException and shows error message
             } catch ( NullPointerException error ) {
@@ -265,9 +261,7 @@ public class FilterActions implements KeyListener {
                 }
 
                 // Create and apply the filter
-                target.getImage().apply(new GaussianBlurFilter(radius));
-                target.repaint();
-                target.getParent().revalidate();
+                target.applyInBackground(new GaussianBlurFilter(radius));
 
             // if no image has been opened, caught by NullPointerException and shows error message
             } catch ( NullPointerException error ) {
@@ -338,9 +332,7 @@ public class FilterActions implements KeyListener {
                 }
 
                 // Create and apply the filter
-                target.getImage().apply(new MedianFilter(radius));
-                target.repaint();
-                target.getParent().revalidate();
+                target.applyInBackground(new MedianFilter(radius));
 
             // if no image has been opened, caught by NullPointerException and shows error message
             } catch ( NullPointerException error ) {
@@ -421,9 +413,7 @@ public class FilterActions implements KeyListener {
                 }
 
                 // Create and apply the filter
-                target.getImage().apply(new EmbossFilter(embossOption));
-                target.repaint();
-                target.getParent().revalidate();
+                target.applyInBackground(new EmbossFilter(embossOption));
 
             // if no image has been opened, caught by NullPointerException and shows error message
             } catch ( NullPointerException error ) {
@@ -500,9 +490,7 @@ public class FilterActions implements KeyListener {
                 }
 
                 // Create and apply the filter
-                target.getImage().apply(new SobelFilter(sobelOption));
-                target.repaint();
-                target.getParent().revalidate();
+                target.applyInBackground(new SobelFilter(sobelOption));
 
             // if no image has been opened, caught by NullPointerException and shows error message
             } catch ( NullPointerException error ) {
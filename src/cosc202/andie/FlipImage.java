@@ -79,4 +79,23 @@ public class FlipImage implements ImageOperation, java.io.Serializable {
     return outputImg;
 }
 
+    /**
+     * Get the direction of the flip.
+     * 
+     * @return True for a horizontal flip, false for a vertical flip.
+     */
+    public boolean isHorizontal() {
+        return flipHorizontal;
+    }
+
+    /**
+     * A flip is its own inverse, so flipping again on the same plane restores the image.
+     * 
+     * @return This operation.
+     */
+    @Override
+    public ImageOperation inverse() {
+        return this;
+    }
+
 }
@@ -158,4 +158,28 @@ public class GaussianBlurFilter implements ImageOperation , java.io.Serializable
 
     }
 
-}
\ No newline at end of file
+    /**
+     * <p>
+     * Gets a Gaussian blur with its radius scaled, for previewing on a scaled copy of the image. 
+     * </p>
+     * 
+     * @param scale the size of the scaled image relative to the full-size one
+     * @return a Gaussian blur with a radius of at least 1
+     */
+    @Override
+    public ImageOperation atScale ( double scale ) {
+        return new GaussianBlurFilter( Math.max( 1 , (int) Math.round( radius * scale ) ) ) ; 
+    }
+
+    /**
+     * <p>
+     * Gets the radius of the filter.
+     * </p>
+     * 
+     * @return the radius of the filter
+     */
+    public int getRadius () {
+        return radius ; 
+    }
+
+}
@@ -0,0 +1,169 @@
+package cosc202.andie;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A state in the branching history of an image's operations.
+ * </p>
+ *
+ * <p>
+ * Each node is the state reached by applying its operation to its parent's state, so the path from
+ * the root (the original image) to a node is that state's operation stack. Applying an operation after
+ * an undo adds a new child rather than discarding the old one, so the history is a tree whose branches
+ * share every operation before the point at which they fork. Each node also remembers which of its
+ * children was visited most recently, which is where redo goes.
+ * </p>
+ *
+ * <p>
+ * Every node has an id that is never reused, so rendered states can be cached under it. Because a
+ * branch shares its ancestors with its siblings, so do their cached states.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @see EditableImage
+ * @version 1.0
+ */
+class HistoryNode {
+
+    /** The most recently issued id. The root of every tree has id 0. */
+    private static final AtomicLong lastId = new AtomicLong();
+
+    /** The operation that produced this state from its parent's, or null for the root. */
+    final ImageOperation op;
+    /** The previous state, or null for the root. */
+    final HistoryNode parent;
+    /** The number of operations applied to reach this state. */
+    final int depth;
+    /** An identifier for this state, unique to this run of ANDIE. */
+    final long id;
+    /** The states reached by applying an operation to this one, in the order they were made. */
+    private final List<HistoryNode> children;
+    /** The child visited most recently, or null if there are none. */
+    private HistoryNode redoChild;
+
+    /**
+     * <p>
+     * Create the root of a new history, with no operations applied.
+     * </p>
+     */
+    HistoryNode() {
+        this(null, null, 0);
+    }
+
+    /**
+     * <p>
+     * Create a node.
+     * </p>
+     *
+     * @param parent The previous state, or null for the root.
+     * @param op The operation that produced this state, or null for the root.
+     * @param id The node's id.
+     */
+    private HistoryNode(HistoryNode parent, ImageOperation op, long id) {
+        this.op = op;
+        this.parent = parent;
+        this.depth = (parent == null) ? 0 : parent.depth + 1;
+        this.id = id;
+        this.children = new ArrayList<HistoryNode>();
+        this.redoChild = null;
+    }
+
+    /**
+     * <p>
+     * Add a new branch from this state, which becomes the one redo goes to.
+     * </p>
+     *
+     * @param op The operation applied to this state.
+     * @return The new state.
+     */
+    HistoryNode addChild(ImageOperation op) {
+        HistoryNode child = new HistoryNode(this, op, lastId.incrementAndGet());
+        children.add(child);
+        redoChild = child;
+        return child;
+    }
+
+    /**
+     * <p>
+     * Get the child that redo goes to.
+     * </p>
+     *
+     * @return The most recently visited child, or null if there are none.
+     */
+    HistoryNode getRedoChild() {
+        return redoChild;
+    }
+
+    /**
+     * <p>
+     * Make one of this node's children the one redo goes to.
+     * </p>
+     *
+     * @param child The child.
+     */
+    void setRedoChild(HistoryNode child) {
+        if (child.parent != this) {
+            throw new IllegalArgumentException("Not a child of this state");
+        }
+        redoChild = child;
+    }
+
+    /**
+     * <p>
+     * Get the sibling made after this one, wrapping around to the first.
+     * </p>
+     *
+     * @return The next alternative to this state from its parent, which is this node if it has no siblings.
+     */
+    HistoryNode nextSibling() {
+        if (parent == null) {
+            return this;
+        }
+        List<HistoryNode> siblings = parent.children;
+        return siblings.get((siblings.indexOf(this) + 1) % siblings.size());
+    }
+
+    /**
+     * <p>
+     * Get the number of alternatives to this state, including itself.
+     * </p>
+     *
+     * @return The number of children of this node's parent, or 1 for the root.
+     */
+    int getSiblingCount() {
+        return (parent == null) ? 1 : parent.children.size();
+    }
+
+    /**
+     * <p>
+     * Check whether the history branches at this state.
+     * </p>
+     *
+     * @return True if more than one operation has been applied to this state.
+     */
+    boolean isFork() {
+        return children.size() > 1;
+    }
+
+    /**
+     * <p>
+     * Get the state on the path to this one with a given number of operations applied.
+     * </p>
+     *
+     * @param depth The number of operations, no more than this node's depth.
+     * @return This node, or the ancestor at that depth.
+     */
+    HistoryNode ancestor(int depth) {
+        HistoryNode node = this;
+        while (node.depth > depth) {
+            node = node.parent;
+        }
+        return node;
+    }
+
+}
@@ -0,0 +1,363 @@
+package cosc202.andie;
+
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * <p>
+ * A memory-bounded cache of rendered images.
+ * </p>
+ *
+ * <p>
+ * The ImageCache keeps copies of {@link BufferedImage}s under a key of the caller's choosing
+ * (for example the depth of the operation stack at which the image was rendered),
+ * while keeping the total size of the stored rasters under a byte budget.
+ * When adding an image would exceed the budget, the least recently used images are
+ * evicted until it fits. An image larger than the whole budget is simply not stored.
+ * </p>
+ *
+ * <p>
+ * Images are stored as {@link TiledImage}s, each sharing unchanged tiles with the image stored
+ * just before it, since successive states of an image's history often differ in only a small area.
+ * The budget is charged for each tile once, however many stored images share it.
+ * Images are copied on the way in and on the way out, so callers are free to alter
+ * both the images they store and the images they get back.
+ * </p>
+ *
+ * <p>
+ * A cache can also be allowed to spill to disk. Images evicted from memory are then written to
+ * a {@link SpilledImage} instead of being discarded, up to a separate budget of disk space, and are
+ * read back from there when asked for. The oldest spilled images are deleted when that budget is exceeded.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @param <K> The type of key used to look up images.
+ * @version 1.0
+ */
+class ImageCache<K> {
+
+    /** The cached images, in least- to most-recently used order. */
+    private final LinkedHashMap<K, TiledImage> entries;
+    /** The most recently stored image, which the next image stored shares tiles with. */
+    private TiledImage latest;
+    /** The maximum number of bytes of raster data to keep. */
+    private long budget;
+    /** The number of bytes of raster data currently kept. */
+    private long used;
+    /** Images evicted from memory and written to disk, in the order they were spilled. */
+    private final LinkedHashMap<K, SpilledImage> spilled;
+    /** The maximum number of bytes of spilled images to keep on disk. Zero disables spilling. */
+    private long spillBudget;
+    /** The number of bytes of spilled images currently on disk. */
+    private long spillUsed;
+
+    /**
+     * <p>
+     * Create a new, empty ImageCache that does not spill to disk.
+     * </p>
+     *
+     * @param budget The maximum number of bytes of raster data to keep.
+     */
+    ImageCache(long budget) {
+        this(budget, 0);
+    }
+
+    /**
+     * <p>
+     * Create a new, empty ImageCache.
+     * </p>
+     *
+     * @param budget The maximum number of bytes of raster data to keep in memory.
+     * @param spillBudget The maximum number of bytes of evicted images to keep on disk, or 0 to not spill.
+     */
+    ImageCache(long budget, long spillBudget) {
+        this.entries = new LinkedHashMap<K, TiledImage>(16, 0.75f, true);
+        this.latest = null;
+        this.budget = budget;
+        this.used = 0;
+        this.spilled = new LinkedHashMap<K, SpilledImage>();
+        this.spillBudget = spillBudget;
+        this.spillUsed = 0;
+    }
+
+    /**
+     * <p>
+     * Look up an image, marking it as recently used.
+     * </p>
+     *
+     * <p>
+     * An image that has been spilled is read back from disk. If that fails, it is 
+     * removed from the cache.
+     * </p>
+     *
+     * @param key The key the image was stored under.
+     * @return A copy of the cached image, or null if there is none.
+     */
+    BufferedImage get(K key) {
+        TiledImage image = entries.get(key);
+        if (image != null) {
+            return image.toBufferedImage();
+        }
+        SpilledImage spilledImage = spilled.get(key);
+        if (spilledImage != null) {
+            try {
+                return spilledImage.toBufferedImage();
+            } catch (IOException ex) {
+                remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Check whether an image is cached, without marking it as recently used.
+     * </p>
+     *
+     * @param key The key to look for.
+     * @return True if an image is stored under the key, in memory or on disk.
+     */
+    boolean contains(K key) {
+        return entries.containsKey(key) || spilled.containsKey(key);
+    }
+
+    /**
+     * <p>
+     * Store a copy of an image, evicting the least recently used images if necessary.
+     * </p>
+     *
+     * @param key The key to store the image under.
+     * @param image The image to store.
+     */
+    void put(K key, BufferedImage image) {
+        put(key, image, null, null);
+    }
+
+    /**
+     * <p>
+     * Store a copy of an image that is known to differ from a cached image only within a region.
+     * </p>
+     *
+     * <p>
+     * Tiles outside the region are shared with the cached image without being compared.
+     * If there is no image cached under the base key, this is the same as {@link #put(Object, BufferedImage)}.
+     * </p>
+     *
+     * @param key The key to store the image under.
+     * @param image The image to store.
+     * @param baseKey The key of the cached image this one was derived from, or null.
+     * @param changed The region in which the two images may differ, or null if unknown.
+     */
+    void put(K key, BufferedImage image, K baseKey, Rectangle changed) {
+        remove(key);
+        TiledImage base = (baseKey != null) ? entries.get(baseKey) : null;
+        TiledImage tiled;
+        if (base != null) {
+            tiled = new TiledImage(image, base, changed);
+        } else {
+            tiled = new TiledImage(image, latest, null);
+        }
+        if (tiled.unreferencedBytes() > budget) {
+            spill(key, tiled);
+            return;
+        }
+        used += tiled.retain();
+        entries.put(key, tiled);
+        latest = tiled;
+        trim();
+    }
+
+    /**
+     * <p>
+     * Remove an image from the cache.
+     * </p>
+     *
+     * @param key The key the image was stored under.
+     */
+    void remove(K key) {
+        TiledImage image = entries.remove(key);
+        if (image != null) {
+            release(image);
+        }
+        SpilledImage spilledImage = spilled.remove(key);
+        if (spilledImage != null) {
+            delete(spilledImage);
+        }
+    }
+
+    /**
+     * <p>
+     * Remove every image whose key matches a condition.
+     * </p>
+     *
+     * @param condition The condition on keys to remove.
+     */
+    void removeIf(Predicate<K> condition) {
+        Iterator<Map.Entry<K, TiledImage>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, TiledImage> entry = it.next();
+            if (condition.test(entry.getKey())) {
+                it.remove();
+                release(entry.getValue());
+            }
+        }
+        Iterator<Map.Entry<K, SpilledImage>> spilledIt = spilled.entrySet().iterator();
+        while (spilledIt.hasNext()) {
+            Map.Entry<K, SpilledImage> entry = spilledIt.next();
+            if (condition.test(entry.getKey())) {
+                spilledIt.remove();
+                delete(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Remove all images from the cache.
+     * </p>
+     */
+    void clear() {
+        for (TiledImage image : entries.values()) {
+            release(image);
+        }
+        entries.clear();
+        for (SpilledImage image : spilled.values()) {
+            delete(image);
+        }
+        spilled.clear();
+    }
+
+    /**
+     * <p>
+     * Change the memory budget, evicting images if the cache is now over it.
+     * </p>
+     *
+     * @param budget The maximum number of bytes of raster data to keep.
+     */
+    void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    /**
+     * <p>
+     * Change the disk budget, deleting spilled images if the cache is now over it.
+     * </p>
+     *
+     * @param spillBudget The maximum number of bytes of evicted images to keep on disk, or 0 to not spill.
+     */
+    void setSpillBudget(long spillBudget) {
+        this.spillBudget = spillBudget;
+        trimSpilled();
+    }
+
+    /**
+     * <p>
+     * Get the number of bytes of raster data currently kept.
+     * </p>
+     *
+     * @return The memory used by the cached images.
+     */
+    long getUsed() {
+        return used;
+    }
+
+    /**
+     * <p>
+     * Get the number of bytes of spilled images currently on disk.
+     * </p>
+     *
+     * @return The disk space used by the cached images.
+     */
+    long getSpillUsed() {
+        return spillUsed;
+    }
+
+    /**
+     * <p>
+     * Drop the cache's reference to an image that has been removed from {@link #entries}.
+     * </p>
+     *
+     * @param image The removed image.
+     */
+    private void release(TiledImage image) {
+        used -= image.release();
+        if (image == latest) {
+            latest = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Evict least recently used images until the cache is within its budget.
+     * </p>
+     */
+    private void trim() {
+        Iterator<Map.Entry<K, TiledImage>> it = entries.entrySet().iterator();
+        while (used > budget && it.hasNext()) {
+            Map.Entry<K, TiledImage> entry = it.next();
+            it.remove();
+            release(entry.getValue());
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Write an image that no longer fits in memory to disk, if spilling is enabled.
+     * </p>
+     *
+     * <p>
+     * If the image cannot be written it is simply dropped, as it would be without spilling.
+     * </p>
+     *
+     * @param key The key to store the image under.
+     * @param image The image to spill.
+     */
+    private void spill(K key, TiledImage image) {
+        if (spillBudget <= 0) {
+            return;
+        }
+        try {
+            SpilledImage spilledImage = image.spill();
+            spilled.put(key, spilledImage);
+            spillUsed += spilledImage.getBytes();
+            trimSpilled();
+        } catch (IOException ex) {
+            // Could be out of disk space or something else. It is only a cache, so carry on.
+        }
+    }
+
+    /**
+     * <p>
+     * Delete the oldest spilled images until the cache is within its disk budget.
+     * </p>
+     */
+    private void trimSpilled() {
+        Iterator<SpilledImage> it = spilled.values().iterator();
+        while (spillUsed > spillBudget && it.hasNext()) {
+            SpilledImage image = it.next();
+            it.remove();
+            delete(image);
+        }
+    }
+
+    /**
+     * <p>
+     * Delete a spilled image that has been removed from {@link #spilled}.
+     * </p>
+     *
+     * @param image The removed image.
+     */
+    private void delete(SpilledImage image) {
+        spillUsed -= image.getBytes();
+        image.delete();
+    }
+
+}
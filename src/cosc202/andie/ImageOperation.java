@@ -1,5 +1,7 @@
 package cosc202.andie;
 
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
@@ -39,4 +41,63 @@ public interface ImageOperation {
      * @return The image resulting from the operation
      */
     public BufferedImage apply(BufferedImage input);    
+
+    /**
+     * Get an operation that exactly reverses this one.
+     * 
+     * Operations that only rearrange pixels (such as flips and quarter-turn rotations) can be 
+     * undone by applying their inverse to the current image, rather than by replaying every 
+     * other operation from the original. Operations that lose information (such as filters
+     * or anything that clips values) cannot, and should keep this default.
+     * 
+     * @return The inverse operation, or null if this operation cannot be exactly reversed.
+     */
+    public default ImageOperation inverse() {
+        return null;
+    }
+
+    /**
+     * Get the region of the image that this operation may change.
+     * 
+     * Operations that only touch a small part of an image (such as drawing a shape) can 
+     * report its bounds, so that only that part needs to be copied, stored or repainted.
+     * An operation that reports a region must keep the size of the image and leave every 
+     * pixel outside the region unchanged. The region may extend past the edges of the image.
+     * 
+     * @return The bounds of the pixels that may change, or null if the whole image may change.
+     */
+    public default Rectangle getAffectedRegion() {
+        return null;
+    }
+
+    /**
+     * Get the size of the image this operation produces, without applying it.
+     * 
+     * This lets the size of an edited image be known before its operations are rendered.
+     * Operations that change the size of an image (such as resizing, rotating or cropping) must
+     * override this default, which keeps the size the same.
+     * 
+     * @param width The width of the input image.
+     * @param height The height of the input image.
+     * @return The size of the resulting image.
+     */
+    public default Dimension getResultSize(int width, int height) {
+        return new Dimension(width, height);
+    }
+
+    /**
+     * Get an equivalent operation for a scaled copy of the image.
+     * 
+     * A preview of a large image can be rendered quickly on a downscaled copy of it, but operations
+     * whose parameters are measured in pixels (such as a filter radius or a position to draw at) 
+     * must be scaled to match. Operations with no such parameters should keep this default.
+     * The result is only used for previews, so it need not be exact.
+     * 
+     * @param scale The size of the scaled image relative to the full-size one.
+     * @return An operation with the same visual effect on the scaled image.
+     */
+    public default ImageOperation atScale(double scale) {
+        return this;
+    }
+
 }
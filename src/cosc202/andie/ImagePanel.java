@@ -1,6 +1,8 @@
 package cosc202.andie;
 
 import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.awt.image.RescaleOp;
@@ -154,6 +156,25 @@ public class ImagePanel extends JPanel {
      * </p>
      */
     private double scale ;
+
+    /**
+     * <p>
+     * The background render of the image's pending operations, or null if there is none running.
+     * </p>
+     * 
+     * <p>
+     * While a render is running the panel is busy: it shows the image as last rendered, 
+     * with a progress bar over it, and pressing Escape cancels the render.
+     * </p>
+     */
+    private SwingWorker<BufferedImage, Integer> renderer = null ; 
+
+    /**
+     * <p>
+     * How far through the background render is, as a percentage.
+     * </p>
+     */
+    private int renderProgress = 0 ; 
    
     /**
      * <p>
@@ -212,7 +233,7 @@ public class ImagePanel extends JPanel {
                     
                     // tempDrawn allows for the draw feature to retain a clean background while drawing multiple lines 
                     if ( tempDrawn == null ) {
-                        tempDrawn = image.getCurrentImage() ; 
+                        tempDrawn = getDisplayedImage() ; 
                     }
 
                 }
@@ -295,15 +316,15 @@ public class ImagePanel extends JPanel {
                     // deals with the drawing cases, utilising outside classes to finish the image and put it on the stack
                     if ( drawLineActive == true ) {
 
-                        image.apply( new DrawLine( (int)(startMouseX/scale) , (int)(startMouseY/scale) , (int)(currentMouseX/scale) , (int)(currentMouseY/scale) , color , sliderSize ) ) ; 
+                        applyToRegion( new DrawLine( (int)(startMouseX/scale) , (int)(startMouseY/scale) , (int)(currentMouseX/scale) , (int)(currentMouseY/scale) , color , sliderSize ) ) ; 
 
                     } else if ( drawCircleActive == true ) { 
 
-                        image.apply( new DrawOval( withinBoundsX , withinBoundsY , withinBoundsWidth , withinBoundsHeight , color , sliderSize , fill ) ) ; 
+                        applyToRegion( new DrawOval( withinBoundsX , withinBoundsY , withinBoundsWidth , withinBoundsHeight , color , sliderSize , fill ) ) ; 
 
                     } else if ( drawRectangleActive == true ) {
 
-                        image.apply( new DrawRectangle( withinBoundsX , withinBoundsY , withinBoundsWidth , withinBoundsHeight , color , sliderSize , fill ) ) ; 
+                        applyToRegion( new DrawRectangle( withinBoundsX , withinBoundsY , withinBoundsWidth , withinBoundsHeight , color , sliderSize , fill ) ) ; 
 
                     }
                     
@@ -362,6 +383,14 @@ public class ImagePanel extends JPanel {
         addMouseListener( myListener ) ; 
         addMouseMotionListener( myListener ) ; 
 
+        // escape cancels a background render
+        getInputMap( WHEN_IN_FOCUSED_WINDOW ).put( KeyStroke.getKeyStroke( KeyEvent.VK_ESCAPE , 0 ) , "cancelRender" ) ; 
+        getActionMap().put( "cancelRender" , new AbstractAction() {
+            public void actionPerformed( ActionEvent e ) {
+                cancelRender() ; 
+            }
+        } ) ; 
+
     }
 
     /** 
@@ -425,6 +454,182 @@ public class ImagePanel extends JPanel {
         }
     }
 
+    /**
+     * <p>
+     * Applies an operation to the image and repaints only the part it changed. 
+     * </p>
+     * 
+     * <p>
+     * Operations such as drawing a shape report the region of the image they affect, 
+     * which is scaled by the zoom level to find the area of the component to repaint. 
+     * Operations that may change the whole image repaint the whole component. 
+     * </p>
+     * 
+     * @param op the operation to apply to the image
+     */
+    private void applyToRegion( ImageOperation op ) {
+
+        image.apply( op ) ; 
+        Rectangle region = op.getAffectedRegion() ; 
+        if ( region == null ) {
+            repaint() ; 
+            return ; 
+        }
+        int x = (int) Math.floor( region.x * scale ) ; 
+        int y = (int) Math.floor( region.y * scale ) ; 
+        int width = (int) Math.ceil( ( region.x + region.width ) * scale ) - x ; 
+        int height = (int) Math.ceil( ( region.y + region.height ) * scale ) - y ; 
+        repaint( x , y , width , height ) ; 
+
+    }
+
+    /**
+     * <p>
+     * Applies an operation to the image, rendering it on a background thread. 
+     * </p>
+     * 
+     * <p>
+     * The user interface stays responsive while the operation runs, and the panel shows the 
+     * image as it was until the result is ready. Operations applied while another is 
+     * still rendering are queued behind it.
+     * </p>
+     * 
+     * @param op the operation to apply to the image
+     * @throws NullPointerException if no image is open
+     */
+    public void applyInBackground( ImageOperation op ) {
+
+        image.apply( op ) ; 
+        renderInBackground() ; 
+
+    }
+
+    /**
+     * <p>
+     * Starts rendering the image's pending operations on a background thread, unless already doing so. 
+     * </p>
+     * 
+     * <p>
+     * If the only pending operations change a region of the image, such as drawn shapes, they are 
+     * rendered straight away instead, since a background render would first copy the whole image. 
+     * </p>
+     */
+    private void renderInBackground() {
+
+        if ( renderer != null || !image.hasPending() ) {
+            return ; 
+        }
+        if ( !image.hasGlobalPending() ) {
+            image.getCurrentImage() ; 
+            return ; 
+        }
+        renderProgress = 0 ; 
+        setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) ) ; 
+        renderer = image.renderInBackground( progress -> {
+            renderProgress = progress ; 
+            repaint() ; 
+        } , () -> {
+            renderer = null ; 
+            setCursor( Cursor.getDefaultCursor() ) ; 
+            repaint() ; 
+            getParent().revalidate() ; 
+            // pick up anything applied while the render was running 
+            renderInBackground() ; 
+        } ) ; 
+        repaint() ; 
+
+    }
+
+    /**
+     * <p>
+     * Checks whether the image is being rendered in the background. 
+     * </p>
+     * 
+     * @return true if a background render is running
+     */
+    public boolean isBusy() {
+        return renderer != null ; 
+    }
+
+    /**
+     * <p>
+     * Cancels the background render, if there is one, undoing the operations it was rendering. 
+     * </p>
+     */
+    public void cancelRender() {
+        if ( renderer != null ) {
+            renderer.cancel( true ) ; 
+        }
+    }
+
+    /**
+     * <p>
+     * Gets the image to show in the panel. 
+     * </p>
+     * 
+     * <p>
+     * While busy this is the image as it was last rendered, so that painting never waits for a background render.
+     * Large images with a proxy are never rendered at full size while painting: their pending operations are 
+     * rendered in the background, and the proxy preview is shown until that is done (except while cropping, 
+     * which needs the full-size pixels). 
+     * </p>
+     * 
+     * @return the image to draw, which is {@link #getDisplayedScale()} times the size of the actual image
+     */
+    private BufferedImage getDisplayedImage() {
+        if ( image.hasPending() && image.getPreviewScale() < 1 ) {
+            renderInBackground() ; 
+        }
+        if ( showingPreview() ) {
+            return image.getPreviewImage() ; 
+        }
+        return isBusy() ? image.getRenderedImage() : image.getCurrentImage() ; 
+    }
+
+    /**
+     * <p>
+     * Checks whether the proxy preview is being shown instead of the full-size image. 
+     * </p>
+     * 
+     * @return true if the displayed image is a preview
+     */
+    private boolean showingPreview() {
+        return isBusy() && !cropActive && image.getPreviewScale() < 1 ; 
+    }
+
+    /**
+     * <p>
+     * Gets the size of the displayed image relative to the actual image. 
+     * </p>
+     * 
+     * @return the preview scale while showing a preview, otherwise 1
+     */
+    private double getDisplayedScale() {
+        return showingPreview() ? image.getPreviewScale() : 1.0 ; 
+    }
+
+    /**
+     * <p>
+     * Gets the width of the actual image, from the displayed image. 
+     * </p>
+     * 
+     * @return the width of the image in its own pixels
+     */
+    private int getImageWidth() {
+        return (int) Math.round( getDisplayedImage().getWidth() / getDisplayedScale() ) ; 
+    }
+
+    /**
+     * <p>
+     * Gets the height of the actual image, from the displayed image. 
+     * </p>
+     * 
+     * @return the height of the image in its own pixels
+     */
+    private int getImageHeight() {
+        return (int) Math.round( getDisplayedImage().getHeight() / getDisplayedScale() ) ; 
+    }
+
     /** 
      * <p>
      * Sets crop to active and refreshes the GUI. 
@@ -585,8 +790,8 @@ public class ImagePanel extends JPanel {
     @Override
     public Dimension getPreferredSize() {
         if (image.hasImage()) {
-            return new Dimension((int) Math.round(image.getCurrentImage().getWidth()*scale), 
-                                 (int) Math.round(image.getCurrentImage().getHeight()*scale));
+            return new Dimension((int) Math.round(getImageWidth()*scale), 
+                                 (int) Math.round(getImageHeight()*scale));
         } else {
             return new Dimension(450, 450);
         }
@@ -617,7 +822,11 @@ public class ImagePanel extends JPanel {
         // checks if an image has been loaded into ANDIE, and if so, draws it on the component
         if (image.hasImage()) {
             g2.scale(scale, scale);
-            g2.drawImage(image.getCurrentImage(), null, 0, 0);
+            Graphics2D shown = (Graphics2D) g2.create() ; 
+            shown.scale( 1 / getDisplayedScale() , 1 / getDisplayedScale() ) ; 
+            shown.setRenderingHint( RenderingHints.KEY_INTERPOLATION , RenderingHints.VALUE_INTERPOLATION_BILINEAR ) ; 
+            shown.drawImage(getDisplayedImage(), null, 0, 0);
+            shown.dispose() ; 
         }
 
         // if any of the draw or crop methods are active
@@ -625,7 +834,7 @@ public class ImagePanel extends JPanel {
             
             // only occurs if crop is active - draws a darkened background to distinguish crop area
             if ( cropActive == true ) { 
-                BufferedImage temp = image.getCurrentImage() ; 
+                BufferedImage temp = getDisplayedImage() ; 
                 RescaleOp op = new RescaleOp(.4f, 0, null); 
                 BufferedImage output = op.filter( temp , null);
                 g2.drawImage(output, null, 0, 0); 
@@ -651,15 +860,15 @@ public class ImagePanel extends JPanel {
                 }
 
                 // deals with out of bound cases, assigning them to point from which they left the image
-                if( width > image.getCurrentImage().getWidth() - x  ) {
-                    withinBoundsWidth = image.getCurrentImage().getWidth() - x ; 
+                if( width > getImageWidth() - x  ) {
+                    withinBoundsWidth = getImageWidth() - x ; 
                 }
-                if( height > image.getCurrentImage().getHeight() - y ) {
-                    withinBoundsHeight = image.getCurrentImage().getHeight() - y ; 
+                if( height > getImageHeight() - y ) {
+                    withinBoundsHeight = getImageHeight() - y ; 
                 }  
 
                 // cropping 
-                if ( width != 0 && height != 0 && currentMouseX < (int)(image.getCurrentImage().getWidth()*scale) && currentMouseY < (int)(image.getCurrentImage().getHeight()*scale) && cropActive == true ) {
+                if ( width != 0 && height != 0 && currentMouseX < (int)(getImageWidth()*scale) && currentMouseY < (int)(getImageHeight()*scale) && cropActive == true ) {
                     
                     // accounts for border loss & control as well as scale 
                     withinBoundsX = (int)(x/scale) ; 
@@ -674,15 +883,15 @@ public class ImagePanel extends JPanel {
 
                     // draws image with variables based on mouse location 
                     BufferedImage cropped = null ; 
-                    cropped = image.getCurrentImage().getSubimage( withinBoundsX , withinBoundsY , withinBoundsWidth , withinBoundsHeight ) ;
+                    cropped = getDisplayedImage().getSubimage( withinBoundsX , withinBoundsY , withinBoundsWidth , withinBoundsHeight ) ;
                     g2.drawImage( cropped , null , withinBoundsX , withinBoundsY ) ; 
                 } else if ( width != 0 && height != 0 && cropActive == true ) {
-                    BufferedImage cropped = image.getCurrentImage().getSubimage( lockedWithinBoundsX , lockedWithinBoundsY , lockedWithinBoundsWidth , lockedWithinBoundsHeight ) ; 
+                    BufferedImage cropped = getDisplayedImage().getSubimage( lockedWithinBoundsX , lockedWithinBoundsY , lockedWithinBoundsWidth , lockedWithinBoundsHeight ) ; 
                     g2.drawImage( cropped , null , lockedWithinBoundsX , lockedWithinBoundsY );  
                 }
 
                 // drawing a line 
-                if ( width != 0 && height != 0 && currentMouseX < (int)(image.getCurrentImage().getWidth()*scale) && currentMouseY < (int)(image.getCurrentImage().getHeight()*scale) && drawLineActive == true ) {
+                if ( width != 0 && height != 0 && currentMouseX < (int)(getImageWidth()*scale) && currentMouseY < (int)(getImageHeight()*scale) && drawLineActive == true ) {
                     
                     // more easily accessible variables
                     withinBoundsX = (int)(x/scale) ; 
@@ -708,7 +917,7 @@ public class ImagePanel extends JPanel {
                 }
 
                 // drawing a oval
-                if ( width != 0 && height != 0 && currentMouseX < (int)(image.getCurrentImage().getWidth()*scale) && currentMouseY < (int)(image.getCurrentImage().getHeight()*scale) && drawCircleActive == true ) {
+                if ( width != 0 && height != 0 && currentMouseX < (int)(getImageWidth()*scale) && currentMouseY < (int)(getImageHeight()*scale) && drawCircleActive == true ) {
                     
                     // more easily accessable variable names 
                     withinBoundsX = (int)(x/scale) ; 
@@ -731,7 +940,7 @@ public class ImagePanel extends JPanel {
                 }
 
                 // drawing a rectangle
-                if ( width != 0 && height != 0 && currentMouseX < (int)(image.getCurrentImage().getWidth()*scale) && currentMouseY < (int)(image.getCurrentImage().getHeight()*scale) && drawRectangleActive == true ) {
+                if ( width != 0 && height != 0 && currentMouseX < (int)(getImageWidth()*scale) && currentMouseY < (int)(getImageHeight()*scale) && drawRectangleActive == true ) {
                     
                     // easier access to variables
                     withinBoundsX = (int)(x/scale) ; 
@@ -756,6 +965,17 @@ public class ImagePanel extends JPanel {
 
         }
 
+        // shows progress of a background render over the top of the image
+        if ( isBusy() ) {
+            Graphics2D overlay = (Graphics2D) g.create() ; 
+            Rectangle visible = getVisibleRect() ; 
+            overlay.setColor( new Color( 0 , 0 , 0 , 128 ) ) ; 
+            overlay.fillRect( visible.x , visible.y , visible.width , 6 ) ; 
+            overlay.setColor( new Color( 255 , 255 , 255 , 200 ) ) ; 
+            overlay.fillRect( visible.x , visible.y , visible.width * renderProgress / 100 , 6 ) ; 
+            overlay.dispose() ; 
+        }
+
         // clears used resources 
         g2.dispose();
     }
@@ -1,9 +1,6 @@
 package cosc202.andie;
 
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
 import java.awt.image.*;
-import java.util.*;
 
 /**
  * <p>
@@ -19,7 +16,6 @@ import java.util.*;
  * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
  * </p>
  * 
- * @see java.awt.image.ConvolveOp
  * @author Steven Mills
  * @version 1.0
  */
@@ -68,49 +64,126 @@ public class MeanFilter implements ImageOperation, java.io.Serializable {
      * </p>
      * 
      * <p>
-     * As with many filters, the Mean filter is implemented via convolution.
-     * The size of the convolution kernel is specified by the {@link radius}.  
+     * The alpha channel is averaged over a square of side 2 * {@link #radius} + 1, and the red, green and
+     * blue channels are averaged over the same square weighted by alpha, as a convolution of premultiplied
+     * colours would, so the colour of transparent pixels does not bleed into their neighbours.
      * Larger radii lead to stronger blurring.
+     * Neighbours that fall outside the image are replaced by the nearest pixel on its edge.
+     * </p>
+     * 
+     * <p>
+     * Rather than convolving with a kernel, whose cost grows with the square of the radius, the filter 
+     * keeps running sums. A sum is kept for each column of the image, covering the rows of the current
+     * neighbourhood, and the neighbourhood's sum is the sum of its columns' sums. Moving one pixel along a row
+     * then adds one column sum and removes another, and moving down a row adds one pixel to each column sum
+     * and removes one, so the cost per pixel is the same for any radius.
      * </p>
      * 
      * @param input The image to apply the Mean filter to.
      * @return The resulting (blurred)) image.
      */
     public BufferedImage apply(BufferedImage input) {
-        
-        int size = (2*radius+1) * (2*radius+1);
-        float [] array = new float[size];
-        Arrays.fill(array, 1.0f/size);
+        PixelBuffer in = new PixelBuffer(input);
+        PixelBuffer out = PixelBuffer.createFor(input, in.width, in.height);
+        int width = in.width;
+        int height = in.height;
+        double scale = 1.0 / ((2*radius+1) * (double) (2*radius+1));
 
-        // larger resizing of input to be overlayed 
-        int newWidth = input.getWidth() + radius*2 ; 
-        int newHeight = input.getHeight() + radius*2 ; 
-        BufferedImage resizedImage = new BufferedImage( newWidth , newHeight, input.getType() ) ;
-        AffineTransform transform = AffineTransform.getScaleInstance(
-                                    (double)newWidth / input.getWidth() ,
-                                    (double)newHeight / input.getHeight() ) ;
-        AffineTransformOp operation = new AffineTransformOp( transform , AffineTransformOp.TYPE_BILINEAR ) ;
-        resizedImage = operation.filter( input , resizedImage ) ;
+        //The sums of each column's alpha, and red, green and blue times alpha, interleaved, over the rows of the first neighbourhood
+        long[] sums = new long[4 * width];
+        addRow(in, 0, radius+1, sums);
+        for (int y = 1; y <= Math.min(radius, height-1); y++) {
+            addRow(in, y, 1, sums);
+        }
+        if (radius > height-1) {
+            addRow(in, height-1, radius - (height-1), sums);
+        }
 
-        // original image overlays the resized image
-        BufferedImage mergedImage = new BufferedImage( input.getWidth() + radius*2 , input.getHeight() + radius*2 , input.getType() ) ; 
-        Graphics2D g2d = mergedImage.createGraphics() ;
-        g2d.drawImage( resizedImage , 0 , 0 , null ) ; 
-        g2d.drawImage( input , radius , radius , null ) ;
-        g2d.dispose() ;
+        int last = 4 * (width-1);
+        int extra = Math.max(0, radius - (width-1));
+        for (int y = 0; y < height; y++) {
+            //The sums over the first neighbourhood in the row
+            long a = (radius+1) * sums[0] + extra * sums[last];
+            long r = (radius+1) * sums[1] + extra * sums[last+1];
+            long g = (radius+1) * sums[2] + extra * sums[last+2];
+            long b = (radius+1) * sums[3] + extra * sums[last+3];
+            for (int x = 1; x <= Math.min(radius, width-1); x++) {
+                a += sums[4*x];
+                r += sums[4*x+1];
+                g += sums[4*x+2];
+                b += sums[4*x+3];
+            }
 
-        // kernel used to filter image and convolution 
-        Kernel kernel = new Kernel( 2*radius+1 , 2*radius+1 , array ) ; 
-        ConvolveOp convOp = new ConvolveOp( kernel ) ; 
-        
-        // filtering of the image, and trimming of the black border 
-        BufferedImage filteredImage = new BufferedImage( input.getColorModel() , input.copyData(null) , input.isAlphaPremultiplied() , null ) ; 
-        filteredImage = convOp.filter( mergedImage , null ) ; 
-        filteredImage = filteredImage.getSubimage( radius , radius , input.getWidth() , input.getHeight() ) ; 
-        BufferedImage output = new BufferedImage( filteredImage.getColorModel() , filteredImage.copyData( filteredImage.getRaster().createCompatibleWritableRaster() ) , filteredImage.isAlphaPremultiplied() , null ) ;  
+            int row = out.index(0, y);
+            for (int x = 0; x < width; x++) {
+                int argb = (int) (a*scale + 0.5) << 24;
+                if (a > 0) {
+                    //Dividing by the alpha sum undoes the weighting, rounded
+                    argb |= (int) ((2*r + a) / (2*a)) << 16 | (int) ((2*g + a) / (2*a)) << 8 | (int) ((2*b + a) / (2*a));
+                }
+                out.write(row + x, argb);
+                int entering = 4 * Math.min(x+radius+1, width-1);
+                int leaving = 4 * Math.max(x-radius, 0);
+                a += sums[entering] - sums[leaving];
+                r += sums[entering+1] - sums[leaving+1];
+                g += sums[entering+2] - sums[leaving+2];
+                b += sums[entering+3] - sums[leaving+3];
+            }
 
-        return output;
+            //Move the column sums down a row
+            int entering = Math.min(y+radius+1, height-1);
+            int leaving = Math.max(y-radius, 0);
+            if (y < height-1 && entering != leaving) {
+                addRow(in, entering, 1, sums);
+                addRow(in, leaving, -1, sums);
+            }
+        }
+        return out.commit();
     }
 
+    /**
+     * <p>
+     * Add the alpha of each pixel in a row, and its colour channels times its alpha, to the running
+     * sums of their columns.
+     * </p>
+     * 
+     * @param in The image.
+     * @param y The row.
+     * @param weight The number of times to add the row, which is negative to remove it.
+     * @param sums The sums of each column's alpha, and red, green and blue times alpha, interleaved.
+     */
+    private static void addRow(PixelBuffer in, int y, int weight, long[] sums) {
+        int row = in.index(0, y);
+        for (int x = 0; x < in.width; x++) {
+            int argb = in.read(row + x);
+            int alpha = weight * (argb >>> 24);
+            sums[4*x] += alpha;
+            sums[4*x+1] += alpha * (argb >> 16 & 0xFF);
+            sums[4*x+2] += alpha * (argb >> 8 & 0xFF);
+            sums[4*x+3] += alpha * (argb & 0xFF);
+        }
+    }
+
+    /**
+     * <p>
+     * Get a mean filter with its radius scaled, for previewing on a scaled copy of the image.
+     * </p>
+     * 
+     * @param scale The size of the scaled image relative to the full-size one.
+     * @return A mean filter with a radius of at least 1.
+     */
+    @Override
+    public ImageOperation atScale(double scale) {
+        return new MeanFilter(Math.max(1, (int) Math.round(radius * scale)));
+    }
+
+    /**
+     * Get the radius of the filter.
+     * 
+     * @return The radius of the filter.
+     */
+    public int getRadius() {
+        return radius;
+    }
 
 }
@@ -9,7 +9,7 @@ import java.util.*;
  * 
  * <p>
  * Using this operations results in similar effects of other types of blurs, only instead of taking an average
- * of all neighboring pixels to create the blur effect, we take those neighboring pixels and sort them.
+ * of all neighboring pixels to create the blur effect, we take the middle value of those neighboring pixels.
  * The result is a blurred image with sharper differences between contrasting colours.
  * </p>
  * 
@@ -29,6 +29,9 @@ public class MedianFilter implements ImageOperation, java.io.Serializable {
      */
     private int radius;
 
+    /** Bit 8 of each 16-bit lane of a spread pixel, which holds the result of comparing two pixels' channels. */
+    private static final long LANE_CARRY = 0x0100010001000100L;
+
     /** 
     * <p>
     * Contstructor for a median filter object.
@@ -57,71 +60,517 @@ public class MedianFilter implements ImageOperation, java.io.Serializable {
      * 
      * <p>
      * The median filter will differ from the mean filter, by taking the median instead of a mean to apply
-     * the blurring effect.
+     * the blurring effect. The median of each of the alpha, red, green and blue channels is taken separately.
+     * Neighbours that fall outside the image are replaced by the pixel in line with the one being filtered,
+     * in the same row or column.
+     * </p>
+     * 
+     * <p>
+     * Rather than sorting every neighbourhood, the median is found from histograms of its values, 
+     * following Perreault and H&eacute;bert's constant-time median filter. A histogram is kept for each
+     * column of the image, covering the rows of the current neighbourhood, and the neighbourhood's histogram
+     * is the sum of its columns' histograms. Moving one pixel along a row then adds one column histogram and 
+     * removes another, and moving down a row adds one pixel to each column histogram and removes one.
+     * Histograms have two levels, 16 coarse bins of 16 values each, so that each step only has to update
+     * the coarse bins, and the fine bins of the one coarse bin the median falls in.
+     * The cost per pixel is therefore the same for any radius.
+     * </p>
+     * 
+     * <p>
+     * The common 3x3 and 5x5 filters instead use fixed networks of comparisons, on all four channels at once.
+     * See {@link #filterNetwork}.
      * </p>
      * 
      * @param input The image input subject to the median filter.
      * @return The outcome of applying the median filter.
     */
-
     public BufferedImage apply(BufferedImage input){
+        PixelBuffer in = new PixelBuffer(input);
+        PixelBuffer out = PixelBuffer.createFor(input, in.width, in.height);
+        if (getRadius() == 1 || getRadius() == 2) {
+            filterNetwork(in, out);
+            return out.commit();
+        }
 
-        //Determine size of area based on radius datafield, default 3x3
-        int xDimension = (2*radius+1);
-        int yDimesion = (2*radius+1);
-        int size =  xDimension * yDimesion;
-        int newWidth = input.getWidth(); 
-        int newHeight = input.getHeight(); 
-        BufferedImage output = new BufferedImage( newWidth , newHeight, input.getType() ) ;
-
-        //Loop through each pixel in the image to retrieve corresponding ARGB values.
-        for (int y = 0; y < input.getHeight(); y++) {
-            for (int x = 0; x < input.getWidth(); x++) {
-                //Arrays for storing each color property in a pixel
-                int [] alphaArray = new int[size];
-                int [] redArray = new int[size];
-                int [] greenArray = new int[size];
-                int [] blueArray = new int[size];
-                int arrCount = 0;
-                //Begin looping through the window of neighboring pixels
-                for(int j = -radius; j <= radius ; j++){     
-                    for (int i = -radius; i <= radius ; i++){
-                        int xPos = x + j;
-                        int yPos = y + i;
-                        int argb; 
-                        if((xPos < 0 || xPos >= input.getWidth()) && (yPos < 0 || yPos >= input.getHeight())){
-                            argb = input.getRGB(x, y);
-                        }else if(xPos < 0 || xPos >= input.getWidth()){
-                            argb = input.getRGB(x, yPos);
-                        }else if(yPos < 0 || yPos >= input.getHeight()){
-                            argb = input.getRGB(xPos, y);
-                        }else{
-                            argb = input.getRGB(xPos, yPos); 
-                        }      
-                        //store ARGB values in their own arrays
-                        int a = (argb & 0xFF000000) >> 24;
-                        int r = (argb & 0x00FF0000) >> 16;
-                        int g = (argb & 0x0000FF00) >> 8;
-                        int b = (argb & 0x000000FF);
-                        alphaArray[arrCount] = a;
-                        redArray[arrCount] = r;
-                        greenArray[arrCount] = g;
-                        blueArray[arrCount] = b; 
-                        arrCount++;
+        //Channels with the same value everywhere, such as the alpha of an opaque image, need no filtering
+        int all = 0xFFFFFFFF;
+        int any = 0;
+        for (int y = 0; y < in.height; y++) {
+            int row = in.index(0, y);
+            for (int x = 0; x < in.width; x++) {
+                all &= in.read(row + x);
+                any |= in.read(row + x);
+            }
+        }
+        int[] result = new int[in.width * in.height];
+        for (int shift = 0; shift < 32; shift += 8) {
+            if (((all ^ any) >>> shift & 0xFF) == 0) {
+                int value = all & (0xFF << shift);
+                for (int i = 0; i < result.length; i++) {
+                    result[i] |= value;
+                }
+            } else {
+                filterChannel(in, shift, result);
+            }
+        }
+        for (int y = 0; y < in.height; y++) {
+            int row = out.index(0, y);
+            for (int x = 0; x < in.width; x++) {
+                out.write(row + x, result[y * in.width + x]);
+            }
+        }
+        return out.commit();
+    }
+
+    /**
+     * <p>
+     * Apply the median filter to one channel of an image.
+     * </p>
+     * 
+     * @param in The image.
+     * @param shift The position of the channel in each pixel: 24 for alpha, 16 for red, 8 for green or 0 for blue.
+     * @param result The filtered pixels, row by row, which the channel's median values are added to.
+     */
+    private void filterChannel(PixelBuffer in, int shift, int[] result) {
+        int width = in.width;
+        int height = in.height;
+        int size = 2*radius+1;
+        //The position of the median in the sorted neighbourhood
+        int rank = size*size/2;
+
+        //Histograms of each column, over the rows of the neighbourhood
+        int[] columnFine = new int[width*256];
+        int[] columnCoarse = new int[width*16];
+        //The histogram of the neighbourhood. Each group of 16 fine bins is only brought up to date 
+        //when the median falls in it, so fineX records the pixel each group was last brought up to date for.
+        int[] fine = new int[256];
+        int[] coarse = new int[16];
+        int[] fineX = new int[16];
+        //The histogram of the pixels in the current row of the neighbourhood, for rows near the top and bottom
+        int[] rowFine = new int[256];
+        int[] rowCoarse = new int[16];
+
+        for (int y = 0; y < Math.min(radius, height); y++) {
+            addRow(in, y, shift, 1, columnFine, columnCoarse);
+        }
+        for (int y = 0; y < height; y++) {
+            if (y + radius < height) {
+                addRow(in, y + radius, shift, 1, columnFine, columnCoarse);
+            }
+            if (y - radius - 1 >= 0) {
+                addRow(in, y - radius - 1, shift, -1, columnFine, columnCoarse);
+            }
+            //The number of rows of the neighbourhood outside the image, which are replaced by this row
+            int outsideRows = size - (Math.min(height - 1, y + radius) - Math.max(0, y - radius) + 1);
+            int row = in.index(0, y);
+
+            //Start the neighbourhood at the left of the row
+            Arrays.fill(coarse, 0);
+            Arrays.fill(fineX, Integer.MIN_VALUE / 2);
+            Arrays.fill(rowFine, 0);
+            Arrays.fill(rowCoarse, 0);
+            for (int c = 0; c <= Math.min(width - 1, radius); c++) {
+                addColumn(coarse, columnCoarse, c, 1);
+                if (outsideRows > 0) {
+                    int value = (in.read(row + c) >>> shift) & 0xFF;
+                    rowFine[value]++;
+                    rowCoarse[value >> 4]++;
+                }
+            }
+
+            for (int x = 0; x < width; x++) {
+                //Slide the neighbourhood along the row
+                if (x > 0) {
+                    int added = x + radius;
+                    int removed = x - radius - 1;
+                    if (added < width) {
+                        addColumn(coarse, columnCoarse, added, 1);
+                        if (outsideRows > 0) {
+                            int value = (in.read(row + added) >>> shift) & 0xFF;
+                            rowFine[value]++;
+                            rowCoarse[value >> 4]++;
+                        }
+                    }
+                    if (removed >= 0) {
+                        addColumn(coarse, columnCoarse, removed, -1);
+                        if (outsideRows > 0) {
+                            int value = (in.read(row + removed) >>> shift) & 0xFF;
+                            rowFine[value]--;
+                            rowCoarse[value >> 4]--;
+                        }
+                    }
+                }
+                //The number of columns of the neighbourhood outside the image, which are replaced by this column
+                int outsideColumns = size - (Math.min(width - 1, x + radius) - Math.max(0, x - radius) + 1);
+
+                int count = 0;
+                int bin = 0;
+                int median = 0;
+                if (outsideColumns == 0 && outsideRows == 0) {
+                    while (count + coarse[bin] <= rank) {
+                        count += coarse[bin];
+                        bin++;
+                    }
+                    updateFine(fine, fineX, columnFine, bin, x, width);
+                    median = bin * 16;
+                    while (count + fine[median] <= rank) {
+                        count += fine[median];
+                        median++;
+                    }
+                } else {
+                    //Each pixel of the neighbourhood is either inside the image, in this column (outsideColumns times),
+                    //in this row (outsideRows times), or this pixel itself (outsideColumns * outsideRows times)
+                    int value = (in.read(row + x) >>> shift) & 0xFF;
+                    int corner = outsideColumns * outsideRows;
+                    for (;; bin++) {
+                        int n = coarse[bin] + outsideColumns * columnCoarse[x*16 + bin] + outsideRows * rowCoarse[bin];
+                        if (bin == value >> 4) {
+                            n += corner;
+                        }
+                        if (count + n > rank) {
+                            break;
+                        }
+                        count += n;
+                    }
+                    updateFine(fine, fineX, columnFine, bin, x, width);
+                    for (median = bin * 16;; median++) {
+                        int n = fine[median] + outsideColumns * columnFine[x*256 + median] + outsideRows * rowFine[median];
+                        if (median == value) {
+                            n += corner;
+                        }
+                        if (count + n > rank) {
+                            break;
+                        }
+                        count += n;
                     }
                 }
-                //sort the arrays
-                Arrays.sort(alphaArray);
-                Arrays.sort(redArray);
-                Arrays.sort(greenArray);
-                Arrays.sort(blueArray);           
-                //pack colors based on median of the sorted array
-                int argbOut = (alphaArray[alphaArray.length/2] << 24) | (redArray[redArray.length/2] << 16) | (greenArray[greenArray.length/2]<< 8) | blueArray[blueArray.length/2]; 
-                //assign the filtered color to the output
-                output.setRGB(x, y, argbOut);
+                result[y * width + x] |= median << shift;
             }
         }
-        return output;//Change to return newly buffered image when done
+    }
+
+    /**
+     * <p>
+     * Add a row of the image to, or remove it from, the histograms of each column.
+     * </p>
+     * 
+     * @param in The image.
+     * @param y The row.
+     * @param shift The position of the channel in each pixel.
+     * @param amount 1 to add the row, or -1 to remove it.
+     * @param columnFine The fine histograms of each column.
+     * @param columnCoarse The coarse histograms of each column.
+     */
+    private static void addRow(PixelBuffer in, int y, int shift, int amount, int[] columnFine, int[] columnCoarse) {
+        int row = in.index(0, y);
+        for (int x = 0; x < in.width; x++) {
+            int value = (in.read(row + x) >>> shift) & 0xFF;
+            columnFine[x*256 + value] += amount;
+            columnCoarse[x*16 + (value >> 4)] += amount;
+        }
+    }
+
+    /**
+     * <p>
+     * Add a column's coarse histogram to, or remove it from, the neighbourhood's.
+     * </p>
+     * 
+     * @param coarse The neighbourhood's coarse histogram.
+     * @param columnCoarse The coarse histograms of each column.
+     * @param x The column.
+     * @param amount 1 to add the column, or -1 to remove it.
+     */
+    private static void addColumn(int[] coarse, int[] columnCoarse, int x, int amount) {
+        int start = x*16;
+        for (int bin = 0; bin < 16; bin++) {
+            coarse[bin] += amount * columnCoarse[start + bin];
+        }
+    }
+
+    /**
+     * <p>
+     * Bring the fine bins of one coarse bin of the neighbourhood's histogram up to date.
+     * </p>
+     * 
+     * <p>
+     * If the bins were last brought up to date for a nearby pixel, the columns that have entered and left the 
+     * neighbourhood since are added and removed. Otherwise the columns of the neighbourhood are added up again.
+     * </p>
+     * 
+     * @param fine The neighbourhood's fine histogram.
+     * @param fineX The pixel each group of fine bins was last brought up to date for.
+     * @param columnFine The fine histograms of each column.
+     * @param bin The coarse bin.
+     * @param x The pixel the neighbourhood is centred on.
+     * @param width The width of the image.
+     */
+    private void updateFine(int[] fine, int[] fineX, int[] columnFine, int bin, int x, int width) {
+        int last = fineX[bin];
+        if (last == x) {
+            return;
+        }
+        int start = bin*16;
+        if (x - last <= radius) {
+            for (int step = last + 1; step <= x; step++) {
+                int added = step + radius;
+                int removed = step - radius - 1;
+                if (added < width) {
+                    for (int i = 0; i < 16; i++) {
+                        fine[start + i] += columnFine[added*256 + start + i];
+                    }
+                }
+                if (removed >= 0) {
+                    for (int i = 0; i < 16; i++) {
+                        fine[start + i] -= columnFine[removed*256 + start + i];
+                    }
+                }
+            }
+        } else {
+            Arrays.fill(fine, start, start + 16, 0);
+            for (int c = Math.max(0, x - radius); c <= Math.min(width - 1, x + radius); c++) {
+                for (int i = 0; i < 16; i++) {
+                    fine[start + i] += columnFine[c*256 + start + i];
+                }
+            }
+        }
+        fineX[bin] = x;
+    }
+
+    /**
+     * <p>
+     * Apply a 3x3 or 5x5 median filter using sorting networks.
+     * </p>
+     * 
+     * <p>
+     * For small neighbourhoods, a fixed sequence of compare-and-swap steps finds the median faster than
+     * histograms do, without branching or allocating anything per pixel. Each pixel is spread into a long
+     * with a 16-bit lane per channel (see {@link #spread}), so that one step compares and swaps all four
+     * channels at once.
+     * </p>
+     * 
+     * <p>
+     * For each row, the column of the neighbourhood below every pixel of the row is sorted first. Neighbouring
+     * pixels share all but one of their columns, so each column is only sorted once. The 3x3 median is then
+     * the median of the largest of the columns' smallest values, the median of their middle values, and 
+     * the smallest of their largest values. The 5x5 median is found by a network that takes advantage of
+     * the columns being sorted, see {@link #median25}.
+     * </p>
+     * 
+     * @param in The image.
+     * @param out The image to write the filtered pixels to.
+     */
+    private void filterNetwork(PixelBuffer in, PixelBuffer out) {
+        int width = in.width;
+        int height = in.height;
+        int size = 2*radius+1;
+        //The sorted columns of the current row, one after another
+        long[] columns = new long[width * size];
+        long[] v = new long[size * size];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int start = x * size;
+                for (int i = -radius; i <= radius; i++) {
+                    //Rows outside the image are replaced by this row
+                    int yPos = (y + i < 0 || y + i >= height) ? y : y + i;
+                    columns[start + radius + i] = spread(in.read(in.index(x, yPos)));
+                }
+                if (radius == 1) {
+                    sort(columns, start, start + 1); sort(columns, start + 1, start + 2); sort(columns, start, start + 1);
+                } else {
+                    sort(columns, start, start + 1); sort(columns, start + 3, start + 4); sort(columns, start + 2, start + 4);
+                    sort(columns, start + 2, start + 3); sort(columns, start, start + 3); sort(columns, start, start + 2);
+                    sort(columns, start + 1, start + 4); sort(columns, start + 1, start + 3); sort(columns, start + 1, start + 2);
+                }
+            }
+            int row = out.index(0, y);
+            for (int x = 0; x < width; x++) {
+                long median;
+                if (radius == 1) {
+                    //Columns outside the image are replaced by this column
+                    int left = (x > 0) ? (x - 1) * 3 : x * 3;
+                    int centre = x * 3;
+                    int right = (x + 1 < width) ? (x + 1) * 3 : x * 3;
+                    long lows = max(max(columns[left], columns[centre]), columns[right]);
+                    long middles = median3(columns[left + 1], columns[centre + 1], columns[right + 1]);
+                    long highs = min(min(columns[left + 2], columns[centre + 2]), columns[right + 2]);
+                    median = median3(lows, middles, highs);
+                } else {
+                    for (int j = -2; j <= 2; j++) {
+                        int xPos = (x + j < 0 || x + j >= width) ? x : x + j;
+                        System.arraycopy(columns, xPos * 5, v, (j + 2) * 5, 5);
+                    }
+                    median = median25(v);
+                }
+                out.write(row + x, pack(median));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Find the median of a 5x5 neighbourhood whose columns are sorted.
+     * </p>
+     * 
+     * <p>
+     * The network sorts across the columns at each position, after which only 13 of the 25 values can be the
+     * median, and then finds the middle one of those. Steps whose result is already known from the order of the 
+     * columns have been removed, as have those that do not affect the median, and steps of which only one result
+     * is needed only compute that one. The network was checked against every neighbourhood of zeros and ones
+     * with sorted columns, which by the zero-one principle means it finds the median of any neighbourhood.
+     * </p>
+     * 
+     * @param v The neighbourhood's spread pixels, by column, each column sorted from smallest to largest.
+     * This is overwritten.
+     * @return The median.
+     */
+    private static long median25(long[] v) {
+        sort(v, 0, 5); sort(v, 15, 20); sort(v, 10, 20); upper(v, 10, 15);
+        upper(v, 0, 15); sort(v, 5, 20); upper(v, 5, 15); sort(v, 1, 6);
+        sort(v, 16, 21); sort(v, 11, 21); sort(v, 11, 16); sort(v, 1, 16);
+        upper(v, 1, 11); sort(v, 6, 21); sort(v, 6, 16); upper(v, 6, 11);
+        sort(v, 2, 7); sort(v, 17, 22); sort(v, 12, 22); sort(v, 12, 17);
+        sort(v, 2, 17); upper(v, 2, 12); lower(v, 7, 22); sort(v, 7, 17);
+        sort(v, 7, 12); sort(v, 3, 8); sort(v, 18, 23); sort(v, 13, 23);
+        sort(v, 13, 18); sort(v, 3, 18); sort(v, 3, 13); lower(v, 8, 23);
+        lower(v, 8, 18); sort(v, 8, 13); sort(v, 4, 9); sort(v, 19, 24);
+        sort(v, 14, 24); sort(v, 14, 19); sort(v, 4, 19); sort(v, 4, 14);
+        lower(v, 9, 24); lower(v, 9, 19); lower(v, 9, 14); sort(v, 9, 3);
+        sort(v, 7, 15); sort(v, 13, 21); sort(v, 16, 20); sort(v, 9, 11);
+        sort(v, 3, 17); sort(v, 8, 16); sort(v, 3, 11); sort(v, 15, 13);
+        sort(v, 4, 12); sort(v, 20, 16); sort(v, 9, 7); upper(v, 3, 15);
+        lower(v, 11, 13); sort(v, 17, 21); upper(v, 4, 20); lower(v, 12, 16);
+        upper(v, 11, 7); lower(v, 17, 15); upper(v, 12, 8); sort(v, 17, 7);
+        sort(v, 20, 8); upper(v, 17, 20); lower(v, 7, 8); upper(v, 7, 9);
+        lower(v, 21, 20); lower(v, 21, 9);
+        return v[21];
+    }
+
+    /**
+     * <p>
+     * Spread a pixel's channels into the low bytes of the four 16-bit lanes of a long.
+     * </p>
+     * 
+     * @param argb The pixel.
+     * @return The spread pixel, with alpha in the highest lane and blue in the lowest.
+     */
+    private static long spread(int argb) {
+        long p = argb & 0xFFFFFFFFL;
+        return (p & 0xFF) | (p & 0xFF00) << 8 | (p & 0xFF0000) << 16 | (p & 0xFF000000L) << 24;
+    }
+
+    /**
+     * <p>
+     * Pack a spread pixel back into an int.
+     * </p>
+     * 
+     * @param lanes The spread pixel.
+     * @return The pixel.
+     */
+    private static int pack(long lanes) {
+        return (int) ((lanes & 0xFF) | (lanes >>> 8) & 0xFF00 | (lanes >>> 16) & 0xFF0000 | (lanes >>> 24) & 0xFF000000L);
+    }
+
+    /**
+     * <p>
+     * Compare each channel of two spread pixels.
+     * </p>
+     * 
+     * <p>
+     * Setting bit 8 of each lane of a before subtracting b leaves it set exactly where a's channel is at least b's,
+     * without borrowing from the next lane.
+     * </p>
+     * 
+     * @param a A spread pixel.
+     * @param b Another spread pixel.
+     * @return A mask with 0xFF in the lanes where a's channel is at least b's, and 0 elsewhere.
+     */
+    private static long atLeast(long a, long b) {
+        return ((((a | LANE_CARRY) - b) & LANE_CARRY) >>> 8) * 0xFF;
+    }
+
+    /**
+     * <p>
+     * Get the smaller of each channel of two spread pixels.
+     * </p>
+     * 
+     * @param a A spread pixel.
+     * @param b Another spread pixel.
+     * @return The channel-wise minimum.
+     */
+    private static long min(long a, long b) {
+        long mask = atLeast(a, b);
+        return (b & mask) | (a & ~mask);
+    }
+
+    /**
+     * <p>
+     * Get the larger of each channel of two spread pixels.
+     * </p>
+     * 
+     * @param a A spread pixel.
+     * @param b Another spread pixel.
+     * @return The channel-wise maximum.
+     */
+    private static long max(long a, long b) {
+        long mask = atLeast(a, b);
+        return (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * <p>
+     * Get the median of each channel of three spread pixels.
+     * </p>
+     * 
+     * @param a A spread pixel.
+     * @param b Another spread pixel.
+     * @param c A third spread pixel.
+     * @return The channel-wise median.
+     */
+    private static long median3(long a, long b, long c) {
+        return max(min(a, b), min(max(a, b), c));
+    }
+
+    /**
+     * <p>
+     * Sort two spread pixels channel by channel, in place.
+     * </p>
+     * 
+     * @param v The spread pixels.
+     * @param i The index to put the smaller channels at.
+     * @param j The index to put the larger channels at.
+     */
+    private static void sort(long[] v, int i, int j) {
+        long a = v[i];
+        long b = v[j];
+        long mask = atLeast(a, b);
+        v[i] = (b & mask) | (a & ~mask);
+        v[j] = (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * <p>
+     * Replace a spread pixel by its channel-wise minimum with another, when the maximum is not needed.
+     * </p>
+     * 
+     * @param v The spread pixels.
+     * @param i The index of the pixel to replace.
+     * @param j The index of the other pixel.
+     */
+    private static void lower(long[] v, int i, int j) {
+        v[i] = min(v[i], v[j]);
+    }
+
+    /**
+     * <p>
+     * Replace a spread pixel by its channel-wise maximum with another, when the minimum is not needed.
+     * </p>
+     * 
+     * @param v The spread pixels.
+     * @param i The index of the other pixel.
+     * @param j The index of the pixel to replace.
+     */
+    private static void upper(long[] v, int i, int j) {
+        v[j] = max(v[i], v[j]);
     }
 
     /**
@@ -133,4 +582,17 @@ public class MedianFilter implements ImageOperation, java.io.Serializable {
         return this.radius;
     }
 
+    /**
+     * <p>
+     * Get a median filter with its radius scaled, for previewing on a scaled copy of the image.
+     * </p>
+     * 
+     * @param scale The size of the scaled image relative to the full-size one.
+     * @return A median filter with a radius of at least 1.
+     */
+    @Override
+    public ImageOperation atScale(double scale) {
+        return new MedianFilter(Math.max(1, (int) Math.round(radius * scale)));
+    }
+
 }
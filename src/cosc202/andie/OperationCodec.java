@@ -0,0 +1,470 @@
+package cosc202.andie;
+
+import java.awt.Color;
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Reads and writes sequences of {@link ImageOperation}s in ANDIE's binary <code>.ops</code> format.
+ * </p>
+ * 
+ * <p>
+ * Operations used to be saved as a serialised {@link Stack}, which stores a full class description
+ * alongside the data, is slow to read, and can no longer be read once one of the classes changes.
+ * The binary format instead stores only each operation's parameters, written and read by a
+ * codec registered for that kind of operation under a short tag.
+ * </p>
+ * 
+ * <p>
+ * A file starts with the bytes <code>ANDIEOPS</code> and a format version number, and is followed
+ * by one record per operation until the end of the file. Each record is the operation's tag, the length 
+ * of its parameters in bytes, and then the parameters. Because every record carries its own length,
+ * a newer version of an operation can add parameters to the end of its record without older versions 
+ * of ANDIE misreading the rest of the file, and records can be read (or appended) one at a time.
+ * Operations with no codec of their own are stored with Java serialisation, under the tag <code>java</code>.
+ * </p>
+ * 
+ * <p>
+ * Files in the old serialised format can still be read with {@link #load(InputStream)}.
+ * </p>
+ * 
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ * 
+ * @version 1.0
+ */
+public class OperationCodec {
+
+    /**
+     * <p>
+     * Writes the parameters of one kind of operation.
+     * </p>
+     * 
+     * @param <T> The kind of operation.
+     */
+    public interface Writer<T extends ImageOperation> {
+        /**
+         * Write an operation's parameters.
+         * 
+         * @param op The operation.
+         * @param out Where to write its parameters.
+         * @throws IOException If the parameters could not be written.
+         */
+        public void write(T op, DataOutput out) throws IOException;
+    }
+
+    /**
+     * <p>
+     * Reads the parameters of one kind of operation.
+     * </p>
+     * 
+     * @param <T> The kind of operation.
+     */
+    public interface Reader<T extends ImageOperation> {
+        /**
+         * Read an operation's parameters.
+         * 
+         * @param in Where to read the parameters from.
+         * @return An operation with those parameters.
+         * @throws IOException If the parameters could not be read.
+         */
+        public T read(DataInput in) throws IOException;
+    }
+
+    /** The bytes every binary operations file starts with. */
+    private static final byte[] MAGIC = {'A', 'N', 'D', 'I', 'E', 'O', 'P', 'S'};
+    /** The version of the format written by this class. */
+    public static final int VERSION = 1;
+    /** The tag for operations stored with Java serialisation. */
+    private static final String SERIALIZED_TAG = "java";
+    /** The longest record accepted at all, in bytes. Anything longer can only be a corrupt length. */
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+    /** The longest record accepted by {@link #readUntrusted}, in bytes. */
+    private static final int MAX_UNTRUSTED_RECORD = 4096;
+    /** The most operations accepted by {@link #readUntrusted}. */
+    private static final int MAX_UNTRUSTED_OPS = 256;
+    /** The largest filter radius accepted by {@link #readUntrusted}, the largest offered in the Filter menu. */
+    private static final int MAX_UNTRUSTED_RADIUS = 10;
+    /** The largest resize percentage accepted by {@link #readUntrusted}, the largest offered in the Transform menu. */
+    private static final double MAX_UNTRUSTED_RESIZE = 1000;
+    /** The widest line accepted by {@link #readUntrusted}, the widest offered in the Draw menu. */
+    private static final int MAX_UNTRUSTED_STROKE = 10;
+
+    /** The tag each kind of operation is stored under. */
+    private static final Map<Class<?>, String> tags = new HashMap<Class<?>, String>();
+    /** The writer for each tag. */
+    private static final Map<String, Writer<?>> writers = new HashMap<String, Writer<?>>();
+    /** The reader for each tag. */
+    private static final Map<String, Reader<?>> readers = new HashMap<String, Reader<?>>();
+
+    static {
+        register("grey", ConvertToGrey.class, (op, out) -> {}, in -> new ConvertToGrey());
+        register("brightness", BrightnessAdjuster.class, (op, out) -> out.writeDouble(op.getBrightness()), 
+                in -> new BrightnessAdjuster(in.readDouble()));
+        register("contrast", ContrastAdjuster.class, (op, out) -> out.writeDouble(op.getContrast()), 
+                in -> new ContrastAdjuster(in.readDouble()));
+        register("mean", MeanFilter.class, (op, out) -> out.writeInt(op.getRadius()), in -> new MeanFilter(in.readInt()));
+        register("median", MedianFilter.class, (op, out) -> out.writeInt(op.getRadius()), in -> new MedianFilter(in.readInt()));
+        register("gaussian", GaussianBlurFilter.class, (op, out) -> out.writeInt(op.getRadius()), 
+                in -> new GaussianBlurFilter(in.readInt()));
+        register("sharpen", SharpenFilter.class, (op, out) -> {}, in -> new SharpenFilter());
+        register("emboss", EmbossFilter.class, (op, out) -> out.writeInt(op.getOption()), in -> new EmbossFilter(in.readInt()));
+        register("sobel", SobelFilter.class, (op, out) -> out.writeInt(op.getOption()), in -> new SobelFilter(in.readInt()));
+        register("flip", FlipImage.class, (op, out) -> out.writeBoolean(op.isHorizontal()), in -> new FlipImage(in.readBoolean()));
+        register("rotate", RotateImage.class, (op, out) -> out.writeInt(op.getDegrees()), in -> new RotateImage(in.readInt()));
+        register("resize", ResizeImage.class, (op, out) -> out.writeDouble(op.getResizePercent()), 
+                in -> new ResizeImage(in.readDouble()));
+        register("crop", Cropper.class, (op, out) -> {
+            out.writeInt(op.getX());
+            out.writeInt(op.getY());
+            out.writeInt(op.getWidth());
+            out.writeInt(op.getHeight());
+        }, in -> new Cropper(in.readInt(), in.readInt(), in.readInt(), in.readInt()));
+        register("line", DrawLine.class, (op, out) -> {
+            out.writeInt(op.getX());
+            out.writeInt(op.getY());
+            out.writeInt(op.getWidth());
+            out.writeInt(op.getHeight());
+            out.writeInt(op.getColor().getRGB());
+            out.writeInt(op.getSlider());
+        }, in -> new DrawLine(in.readInt(), in.readInt(), in.readInt(), in.readInt(), new Color(in.readInt(), true), in.readInt()));
+        register("oval", DrawOval.class, (op, out) -> {
+            out.writeInt(op.getX());
+            out.writeInt(op.getY());
+            out.writeInt(op.getWidth());
+            out.writeInt(op.getHeight());
+            out.writeInt(op.getColor().getRGB());
+            out.writeInt(op.getSlider());
+            out.writeBoolean(op.isFilled());
+        }, in -> new DrawOval(in.readInt(), in.readInt(), in.readInt(), in.readInt(), new Color(in.readInt(), true), in.readInt(), in.readBoolean()));
+        register("rectangle", DrawRectangle.class, (op, out) -> {
+            out.writeInt(op.getX());
+            out.writeInt(op.getY());
+            out.writeInt(op.getWidth());
+            out.writeInt(op.getHeight());
+            out.writeInt(op.getColor().getRGB());
+            out.writeInt(op.getSlider());
+            out.writeBoolean(op.isFilled());
+        }, in -> new DrawRectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt(), new Color(in.readInt(), true), in.readInt(), in.readBoolean()));
+    }
+
+    /**
+     * <p>
+     * Register a codec for a kind of operation.
+     * </p>
+     * 
+     * <p>
+     * Once a tag has been used in saved files, it should keep the same meaning. New parameters 
+     * may be added to the end of a record, as long as the reader copes with them being missing.
+     * If the operation's results change while its record does not, {@link RenderCache#RENDER_VERSION}
+     * must be increased.
+     * </p>
+     * 
+     * @param <T> The kind of operation.
+     * @param tag The tag to store the operation under.
+     * @param type The class of the operation.
+     * @param writer Writes the operation's parameters.
+     * @param reader Reads the operation's parameters.
+     */
+    public static <T extends ImageOperation> void register(String tag, Class<T> type, Writer<T> writer, Reader<T> reader) {
+        tags.put(type, tag);
+        writers.put(tag, writer);
+        readers.put(tag, reader);
+    }
+
+    /**
+     * <p>
+     * Write a sequence of operations as a complete binary operations file.
+     * </p>
+     * 
+     * @param out Where to write the operations. It is flushed but not closed.
+     * @param ops The operations, in order.
+     * @throws IOException If an operation could not be written.
+     */
+    public static void write(OutputStream out, List<? extends ImageOperation> ops) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        writeHeader(data);
+        for (ImageOperation op : ops) {
+            writeRecord(data, op);
+        }
+        data.flush();
+    }
+
+    /**
+     * <p>
+     * Write the header that starts a binary operations file.
+     * </p>
+     * 
+     * @param out Where to write the header.
+     * @throws IOException If the header could not be written.
+     */
+    public static void writeHeader(DataOutput out) throws IOException {
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    /**
+     * <p>
+     * Write a single operation as a record.
+     * </p>
+     * 
+     * @param out Where to write the record.
+     * @param op The operation to write.
+     * @throws IOException If the operation could not be written.
+     */
+    @SuppressWarnings("unchecked")
+    public static void writeRecord(DataOutput out, ImageOperation op) throws IOException {
+        String tag = tags.get(op.getClass());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (tag != null) {
+            ((Writer<ImageOperation>) writers.get(tag)).write(op, new DataOutputStream(bytes));
+        } else {
+            tag = SERIALIZED_TAG;
+            ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+            objOut.writeObject(op);
+            objOut.close();
+        }
+        out.writeUTF(tag);
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    /**
+     * <p>
+     * Read a binary operations file one operation at a time.
+     * </p>
+     * 
+     * <p>
+     * Each operation is passed on as soon as its record has been read, so the whole file is never
+     * held in memory. A final record that was only partly written (such as by a crash while appending)
+     * is ignored. A record that was written in full but whose operation cannot be read from it is
+     * an error, wherever it is in the file.
+     * </p>
+     * 
+     * @param in Where to read the operations from, positioned at the start of the header.
+     * @param consumer Called with each operation, in order.
+     * @throws IOException If the file is not a binary operations file, or contains an unknown or
+     *                     unreadable operation.
+     */
+    public static void read(InputStream in, Consumer<ImageOperation> consumer) throws IOException {
+        DataInputStream data = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(new BufferedInputStream(in));
+        readHeader(data);
+        while (true) {
+            ImageOperation op;
+            try {
+                op = readRecord(data);
+            } catch (EOFException ex) {
+                return;
+            }
+            consumer.accept(op);
+        }
+    }
+
+    /**
+     * <p>
+     * Read and check the header that starts a binary operations file.
+     * </p>
+     * 
+     * @param in Where to read the header from.
+     * @return The version of the format the file was written in.
+     * @throws IOException If the file is not a binary operations file, or was written in a newer
+     *                     version of the format than {@link #VERSION}.
+     */
+    public static int readHeader(DataInput in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an ANDIE operations file");
+        }
+        int version = in.readUnsignedShort();
+        if (version > VERSION) {
+            throw new IOException("Operations file is from a newer version of ANDIE (format " + version + ")");
+        }
+        return version;
+    }
+
+    /**
+     * <p>
+     * Read a single operation written by {@link #writeRecord}.
+     * </p>
+     * 
+     * @param in Where to read the record from.
+     * @return The operation.
+     * @throws EOFException If the input ends before a whole record has been read.
+     * @throws IOException If the record's length is impossible, or it contains an unknown operation or
+     *                     one whose parameters cannot be read. This is never an EOFException, even when
+     *                     the parameters end too soon.
+     */
+    public static ImageOperation readRecord(DataInput in) throws IOException {
+        String tag = in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD) {
+            throw new IOException("Corrupt operation record");
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(tag, payload);
+    }
+
+    /**
+     * <p>
+     * Read a binary operations file from a source that is not trusted, such as a network request.
+     * </p>
+     * 
+     * <p>
+     * Java serialisation can be made to construct almost any object, so unlike {@link #load(InputStream)}
+     * this accepts neither the old serialised format nor operations stored under the <code>java</code> 
+     * tag. Records longer than {@link #MAX_UNTRUSTED_RECORD} bytes, and a final record that is cut short,
+     * are rejected too.
+     * </p>
+     * 
+     * <p>
+     * Operations are also only accepted with parameters that ANDIE's own menus could have given them,
+     * such as a filter radius of at most {@link #MAX_UNTRUSTED_RADIUS}, so that a request cannot ask for
+     * an enormous amount of work or memory. Whether a crop fits the image is left to the caller, which
+     * knows the image's size.
+     * </p>
+     * 
+     * @param in Where to read the operations from.
+     * @return The operations, in order.
+     * @throws IOException If the operations could not be read, or are not allowed.
+     */
+    public static List<ImageOperation> readUntrusted(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        DataInputStream data = new DataInputStream(buffered);
+        readHeader(data);
+        List<ImageOperation> ops = new ArrayList<ImageOperation>();
+        while (true) {
+            buffered.mark(1);
+            if (buffered.read() < 0) {
+                return ops;
+            }
+            buffered.reset();
+            String tag = data.readUTF();
+            if (tag.equals(SERIALIZED_TAG)) {
+                throw new IOException("Serialised operations are not accepted");
+            }
+            int length = data.readInt();
+            if (length < 0 || length > MAX_UNTRUSTED_RECORD) {
+                throw new IOException("Operation record is too long");
+            }
+            byte[] payload = new byte[length];
+            data.readFully(payload);
+            if (ops.size() == MAX_UNTRUSTED_OPS) {
+                throw new IOException("More than " + MAX_UNTRUSTED_OPS + " operations");
+            }
+            ImageOperation op = decode(tag, payload);
+            checkUntrusted(tag, op);
+            ops.add(op);
+        }
+    }
+
+    /**
+     * <p>
+     * Check that an untrusted operation's parameters are ones ANDIE's menus could have given it.
+     * </p>
+     * 
+     * @param tag The tag the operation was stored under.
+     * @param op The operation to check.
+     * @throws IOException If the parameters are not allowed.
+     */
+    private static void checkUntrusted(String tag, ImageOperation op) throws IOException {
+        boolean allowed = true;
+        if (op instanceof MeanFilter) {
+            allowed = ((MeanFilter) op).getRadius() >= 1 && ((MeanFilter) op).getRadius() <= MAX_UNTRUSTED_RADIUS;
+        } else if (op instanceof MedianFilter) {
+            allowed = ((MedianFilter) op).getRadius() >= 1 && ((MedianFilter) op).getRadius() <= MAX_UNTRUSTED_RADIUS;
+        } else if (op instanceof GaussianBlurFilter) {
+            allowed = ((GaussianBlurFilter) op).getRadius() >= 1 && ((GaussianBlurFilter) op).getRadius() <= MAX_UNTRUSTED_RADIUS;
+        } else if (op instanceof BrightnessAdjuster) {
+            // Written this way round so that NaN is refused
+            allowed = Math.abs(((BrightnessAdjuster) op).getBrightness()) <= 100;
+        } else if (op instanceof ContrastAdjuster) {
+            allowed = Math.abs(((ContrastAdjuster) op).getContrast()) <= 100;
+        } else if (op instanceof RotateImage) {
+            int degrees = ((RotateImage) op).getDegrees();
+            allowed = degrees == 90 || degrees == -90 || degrees == 180;
+        } else if (op instanceof ResizeImage) {
+            double percent = ((ResizeImage) op).getResizePercent();
+            allowed = percent > 0 && percent <= MAX_UNTRUSTED_RESIZE;
+        } else if (op instanceof Cropper) {
+            Cropper crop = (Cropper) op;
+            allowed = crop.getX() >= 0 && crop.getY() >= 0 && crop.getWidth() >= 1 && crop.getHeight() >= 1;
+        } else if (op instanceof DrawLine) {
+            allowed = ((DrawLine) op).getSlider() >= 1 && ((DrawLine) op).getSlider() <= MAX_UNTRUSTED_STROKE;
+        } else if (op instanceof DrawOval) {
+            allowed = ((DrawOval) op).getSlider() >= 1 && ((DrawOval) op).getSlider() <= MAX_UNTRUSTED_STROKE;
+        } else if (op instanceof DrawRectangle) {
+            allowed = ((DrawRectangle) op).getSlider() >= 1 && ((DrawRectangle) op).getSlider() <= MAX_UNTRUSTED_STROKE;
+        }
+        if (!allowed) {
+            throw new IOException("Parameters of " + tag + " operation are out of range");
+        }
+    }
+
+    /**
+     * <p>
+     * Read a file of operations, in either the binary format or the old serialised format.
+     * </p>
+     * 
+     * @param in Where to read the operations from.
+     * @return The operations, in order.
+     * @throws IOException If the operations could not be read.
+     */
+    public static Stack<ImageOperation> load(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(MAGIC.length);
+        byte[] start = buffered.readNBytes(MAGIC.length);
+        buffered.reset();
+
+        Stack<ImageOperation> ops = new Stack<ImageOperation>();
+        if (Arrays.equals(start, MAGIC)) {
+            read(buffered, ops::add);
+            return ops;
+        }
+        try {
+            ObjectInputStream objIn = new ObjectInputStream(buffered);
+            // Older files hold a serialised Stack, which cannot be checked at compile time
+            @SuppressWarnings("unchecked")
+            Stack<ImageOperation> opsFromFile = (Stack<ImageOperation>) objIn.readObject();
+            return opsFromFile;
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Could not read operations", ex);
+        }
+    }
+
+    /**
+     * <p>
+     * Turn a record back into an operation.
+     * </p>
+     * 
+     * @param tag The tag the operation was stored under.
+     * @param payload The operation's parameters.
+     * @return The operation.
+     * @throws IOException If the tag is unknown or the parameters cannot be read.
+     */
+    private static ImageOperation decode(String tag, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            if (tag.equals(SERIALIZED_TAG)) {
+                try {
+                    return (ImageOperation) new ObjectInputStream(in).readObject();
+                } catch (ClassNotFoundException | ClassCastException ex) {
+                    throw new IOException("Could not read operation", ex);
+                }
+            }
+            Reader<?> reader = readers.get(tag);
+            if (reader == null) {
+                throw new IOException("Unknown operation: " + tag);
+            }
+            return reader.read(in);
+        } catch (EOFException ex) {
+            // The whole record was read, so this is not the end of the file but a record too short for its reader
+            throw new IOException("Operation record is too short: " + tag, ex);
+        }
+    }
+
+}
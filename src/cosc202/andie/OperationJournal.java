@@ -0,0 +1,301 @@
+package cosc202.andie;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>
+ * An append-only record of the changes made to an image's operation stack since it was last saved.
+ * </p>
+ * 
+ * <p>
+ * The <code>.ops</code> file is only written when the image is saved, so a crash would otherwise lose
+ * every change since then. Rewriting the whole <code>.ops</code> file after each change would cost time
+ * in proportion to the number of operations. Instead each change (applying an operation, undoing, 
+ * redoing) is appended to the journal as a small record, so the cost per change is constant.
+ * </p>
+ * 
+ * <p>
+ * The journal uses the same header and operation records as {@link OperationCodec}, with a byte 
+ * before each entry saying what kind of change it is. When the image is next opened, the journal
+ * is {@link #replay}ed on top of the saved operations. A final entry that was only partly written
+ * when ANDIE stopped, or any other data that cannot be read at the end of the journal (such as the 
+ * zeros a file system may leave after losing power), is ignored. A damaged entry with more entries
+ * after it means the journal cannot be trusted, and it is not replayed at all.
+ * </p>
+ * 
+ * <p>
+ * If the journal cannot be written (such as when the image is in a read-only folder), journaling
+ * simply stops; editing carries on as normal.
+ * </p>
+ * 
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ * 
+ * @see EditableImage
+ * @version 1.0
+ */
+class OperationJournal {
+
+    /** An entry for an operation pushed on to the stack, followed by the operation's record. */
+    private static final int APPLY = 'A';
+    /** An entry for the top operation being moved to the redo stack. */
+    private static final int UNDO = 'U';
+    /** An entry for an undone operation being redone, followed by the operation's record. */
+    private static final int REDO = 'R';
+    /** An entry for the whole stack being cleared. */
+    private static final int CLEAR = 'C';
+
+    /** The journal file. */
+    private final File file;
+    /** The open journal file, or null if nothing has been written since it was opened or deleted. */
+    private DataOutputStream out;
+    /** Whether writing to the journal has failed, in which case nothing more is written. */
+    private boolean failed;
+    /** The operations to {@link #rebase} the journal on before its next entry, or null if none. */
+    private List<ImageOperation> base;
+
+    /**
+     * <p>
+     * Create a journal. The file is not created until the first change is recorded.
+     * </p>
+     * 
+     * @param file The journal file.
+     */
+    OperationJournal(File file) {
+        this.file = file;
+        this.out = null;
+        this.failed = false;
+        this.base = null;
+    }
+
+    /**
+     * <p>
+     * Record that an operation was pushed on to the stack, clearing the redo stack.
+     * </p>
+     * 
+     * @param op The operation.
+     */
+    void apply(ImageOperation op) {
+        append(APPLY, op);
+    }
+
+    /**
+     * <p>
+     * Record that the top operation was undone.
+     * </p>
+     */
+    void undo() {
+        append(UNDO, null);
+    }
+
+    /**
+     * <p>
+     * Record that the most recently undone operation was redone.
+     * </p>
+     * 
+     * <p>
+     * The operation is recorded too, since it may have been undone before the journal was started.
+     * </p>
+     * 
+     * @param op The operation.
+     */
+    void redo(ImageOperation op) {
+        append(REDO, op);
+    }
+
+    /**
+     * <p>
+     * Start the journal again from a given operation stack.
+     * </p>
+     * 
+     * <p>
+     * This is used when the stack changes in a way that is not a single step, such as when a macro 
+     * replaces it, or when the saved stack is not exactly the same as the one in memory.
+     * </p>
+     * 
+     * @param ops The operations the stack now holds.
+     */
+    void rebase(List<ImageOperation> ops) {
+        delete();
+        append(CLEAR, null);
+        for (ImageOperation op : ops) {
+            append(APPLY, op);
+        }
+    }
+
+    /**
+     * <p>
+     * Delete the journal, and start it again from a given operation stack once the next change is recorded.
+     * </p>
+     * 
+     * <p>
+     * This is used when the saved stack is not exactly the same as the one in memory, so later entries 
+     * would not replay on top of it. Until something changes, the saved stack is all there is to recover,
+     * so no journal is left behind.
+     * </p>
+     * 
+     * @param ops The operations the stack holds, which are copied.
+     */
+    void rebaseOnNextChange(List<ImageOperation> ops) {
+        delete();
+        base = new ArrayList<ImageOperation>(ops);
+    }
+
+    /**
+     * <p>
+     * Close and delete the journal, such as once its changes have been saved.
+     * </p>
+     * 
+     * <p>
+     * Later changes start a new journal.
+     * </p>
+     */
+    void delete() {
+        close();
+        file.delete();
+        failed = false;
+        base = null;
+    }
+
+    /**
+     * <p>
+     * Close the journal file, leaving it in place.
+     * </p>
+     */
+    void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                // Already written as much as we can.
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Append an entry to the journal, creating the file with its header if needed.
+     * </p>
+     * 
+     * <p>
+     * Each entry is flushed straight away, so it survives ANDIE itself stopping unexpectedly.
+     * </p>
+     * 
+     * @param kind The kind of entry.
+     * @param op The operation for an {@link #APPLY} or {@link #REDO} entry, otherwise null.
+     */
+    private void append(int kind, ImageOperation op) {
+        if (base != null) {
+            List<ImageOperation> ops = base;
+            base = null;
+            rebase(ops);
+        }
+        if (failed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                boolean exists = file.length() > 0;
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                if (!exists) {
+                    OperationCodec.writeHeader(out);
+                }
+            }
+            out.writeByte(kind);
+            if (op != null) {
+                OperationCodec.writeRecord(out, op);
+            }
+            out.flush();
+        } catch (IOException ex) {
+            // Could be a read-only folder or something else. Carry on without a journal.
+            close();
+            failed = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Replay a journal on top of the saved operation stack.
+     * </p>
+     * 
+     * <p>
+     * Entries are replayed up to the first one that cannot be read, which is taken to be the end of 
+     * the journal if nothing but zeros follows it. Entries are only ever appended, so a damaged final
+     * entry was never completely written. If anything else follows, an entry in the middle of the
+     * journal is damaged, and the journal is not used, rather than losing the changes after it.
+     * </p>
+     * 
+     * @param file The journal file.
+     * @param ops The saved operations, which are changed to include the journal's changes.
+     * @param redoOps The redo stack, which is changed to include the journal's changes.
+     * @return True if there was a journal to replay.
+     * @throws IOException If the journal exists but its header could not be read, or an entry before
+     *                     the end is damaged. The stacks may have been partly changed.
+     */
+    static boolean replay(File file, Stack<ImageOperation> ops, Stack<ImageOperation> redoOps) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            OperationCodec.readHeader(in);
+            try {
+                while (replayEntry(in, ops, redoOps)) {
+                    // Each entry is replayed as it is read
+                }
+            } catch (IOException ex) {
+                // The last entry was cut short or damaged, unless there is more after it
+                int next;
+                while ((next = in.read()) >= 0) {
+                    if (next != 0) {
+                        throw new IOException("Damaged journal entry before the end of the journal", ex);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Read one journal entry and apply its change to the operation stack.
+     * </p>
+     * 
+     * <p>
+     * The stacks are only changed once the whole entry has been read.
+     * </p>
+     * 
+     * @param in Where to read the entry from.
+     * @param ops The operation stack.
+     * @param redoOps The redo stack.
+     * @return True if an entry was replayed, or false at the end of the journal.
+     * @throws IOException If the entry could not be read.
+     */
+    private static boolean replayEntry(DataInputStream in, Stack<ImageOperation> ops, Stack<ImageOperation> redoOps) throws IOException {
+        int kind = in.read();
+        if (kind == APPLY) {
+            ops.push(OperationCodec.readRecord(in));
+            redoOps.clear();
+        } else if (kind == UNDO) {
+            if (!ops.isEmpty()) {
+                redoOps.push(ops.pop());
+            }
+        } else if (kind == REDO) {
+            ops.push(OperationCodec.readRecord(in));
+            if (!redoOps.isEmpty()) {
+                redoOps.pop();
+            }
+        } else if (kind == CLEAR) {
+            ops.clear();
+            redoOps.clear();
+        } else if (kind < 0) {
+            return false;
+        } else {
+            throw new IOException("Unknown journal entry: " + kind);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,197 @@
+package cosc202.andie;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * <p>
+ * Applies a sequence of {@link ImageOperation}s to an image as cheaply as possible.
+ * </p>
+ * 
+ * <p>
+ * Replaying a stack of operations one at a time can do more work than needed. 
+ * The pipeline looks for runs of operations that can be done together and does them 
+ * together: consecutive {@link PointOperation}s are combined into a single 
+ * {@link PointOperationChain}, so they make one pass over the image instead of one each.
+ * The result is the same as applying each operation in turn.
+ * </p>
+ * 
+ * <p>
+ * Runs of consecutive {@link FlipImage}s and {@link RotateImage}s are also simplified.
+ * Any such run ends up in one of only eight orientations of the image, each of which can
+ * be reached with at most one flip and one rotation, so two flips that cancel out or four
+ * quarter turns cost nothing at all.
+ * </p>
+ * 
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ * 
+ * @see EditableImage
+ * @version 1.0
+ */
+public class OperationPipeline {
+
+    /**
+     * <p>
+     * Apply a sequence of operations to an image.
+     * </p>
+     * 
+     * @param input The image to apply the operations to. Some operations alter it in place.
+     * @param ops The operations to apply, in order.
+     * @return The result of applying all of the operations.
+     */
+    public static BufferedImage apply(BufferedImage input, List<? extends ImageOperation> ops) {
+        return apply(input, ops, null);
+    }
+
+    /**
+     * <p>
+     * Apply a sequence of operations to an image, reporting each intermediate result.
+     * </p>
+     * 
+     * <p>
+     * Intermediate results are only produced between the groups of operations the pipeline
+     * applies together, so the listener is not called for every operation.
+     * </p>
+     * 
+     * @param input The image to apply the operations to. Some operations alter it in place.
+     * @param ops The operations to apply, in order.
+     * @param onStep Called with each intermediate image and the number of operations applied 
+     *               to produce it, or null.
+     * @return The result of applying all of the operations.
+     */
+    public static BufferedImage apply(BufferedImage input, List<? extends ImageOperation> ops, ObjIntConsumer<BufferedImage> onStep) {
+        BufferedImage image = input;
+        int applied = 0;
+        while (applied < ops.size()) {
+            int end = applied;
+            while (end < ops.size() && ops.get(end) instanceof PointOperation) {
+                end++;
+            }
+            if (end - applied > 1) {
+                List<PointOperation> run = new ArrayList<PointOperation>();
+                for (ImageOperation op : ops.subList(applied, end)) {
+                    run.add((PointOperation) op);
+                }
+                image = new PointOperationChain(run).apply(image);
+                applied = end;
+            } else {
+                end = applied;
+                while (end < ops.size() && isOrientation(ops.get(end))) {
+                    end++;
+                }
+                if (end - applied > 1) {
+                    for (ImageOperation op : simplifyOrientation(ops.subList(applied, end))) {
+                        image = op.apply(image);
+                    }
+                    applied = end;
+                } else {
+                    image = ops.get(applied).apply(image);
+                    applied++;
+                }
+            }
+            if (onStep != null) {
+                onStep.accept(image, applied);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * <p>
+     * Rewrite a sequence of operations into an equivalent one that is no longer.
+     * </p>
+     * 
+     * <p>
+     * Each run of flips and rotations is replaced with the at most two operations that
+     * give the same orientation. Other operations are kept as they are.
+     * </p>
+     * 
+     * @param ops The operations to simplify, in order.
+     * @return A new list of operations with the same effect.
+     */
+    public static List<ImageOperation> simplify(List<? extends ImageOperation> ops) {
+        List<ImageOperation> simplified = new ArrayList<ImageOperation>();
+        int start = 0;
+        while (start < ops.size()) {
+            int end = start;
+            while (end < ops.size() && isOrientation(ops.get(end))) {
+                end++;
+            }
+            if (end > start) {
+                simplified.addAll(simplifyOrientation(ops.subList(start, end)));
+                start = end;
+            } else {
+                simplified.add(ops.get(start));
+                start++;
+            }
+        }
+        return simplified;
+    }
+
+    /**
+     * <p>
+     * Check whether an operation only changes the orientation of an image.
+     * </p>
+     * 
+     * @param op The operation to check.
+     * @return True if the operation is a flip or a rotation.
+     */
+    private static boolean isOrientation(ImageOperation op) {
+        return op instanceof FlipImage || op instanceof RotateImage;
+    }
+
+    /**
+     * <p>
+     * Reduce a run of flips and rotations to at most one flip and one rotation.
+     * </p>
+     * 
+     * <p>
+     * The combined effect of the run is tracked as a horizontal flip (or not) followed by some number 
+     * of clockwise quarter turns. A rotation adds to the quarter turns. Flipping horizontally
+     * after k quarter turns is the same as flipping first and then turning -k times, so a horizontal
+     * flip toggles the flip and negates the turns. A vertical flip is a horizontal flip followed by a 
+     * half turn.
+     * </p>
+     * 
+     * @param run The flips and rotations, in order.
+     * @return The equivalent operations, in order.
+     */
+    private static List<ImageOperation> simplifyOrientation(List<? extends ImageOperation> run) {
+        boolean flipped = false;
+        int turns = 0;
+        for (ImageOperation op : run) {
+            if (op instanceof RotateImage) {
+                int degrees = ((RotateImage) op).getDegrees();
+                turns += (degrees == 90) ? 1 : (degrees == -90) ? 3 : 2;
+            } else {
+                flipped = !flipped;
+                turns = -turns;
+                if (!((FlipImage) op).isHorizontal()) {
+                    turns += 2;
+                }
+            }
+        }
+        turns = Math.floorMod(turns, 4);
+
+        List<ImageOperation> simplified = new ArrayList<ImageOperation>();
+        if (flipped && turns == 2) {
+            simplified.add(new FlipImage(false));
+            return simplified;
+        }
+        if (flipped) {
+            simplified.add(new FlipImage(true));
+        }
+        if (turns == 1) {
+            simplified.add(new RotateImage(90));
+        } else if (turns == 2) {
+            simplified.add(new RotateImage(180));
+        } else if (turns == 3) {
+            simplified.add(new RotateImage(-90));
+        }
+        return simplified;
+    }
+
+}
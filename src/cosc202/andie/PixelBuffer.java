@@ -0,0 +1,246 @@
+package cosc202.andie;
+
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+/**
+ * <p>
+ * The pixels of an image as an array of packed ARGB values, for operations that visit every pixel.
+ * </p>
+ *
+ * <p>
+ * {@link BufferedImage#getRGB(int, int)} and {@link BufferedImage#setRGB(int, int, int)} convert
+ * each pixel through the image's {@link ColorModel}, which costs far more than the arithmetic most
+ * operations do on it. For images of type {@link BufferedImage#TYPE_INT_ARGB} or
+ * {@link BufferedImage#TYPE_INT_RGB}, whose pixels are already stored as packed ints, a PixelBuffer
+ * is a view of the image's own {@link DataBufferInt}: the pixel at (x, y) is
+ * <code>data[offset + y * stride + x]</code>, and changes to the array are changes to the image.
+ * Any other image is copied into an array on creation and must be written back with {@link #commit()},
+ * so operations get the same results whatever the image's type, just more slowly.
+ * </p>
+ *
+ * <p>
+ * ANDIE converts every image it reads to {@link #WORKING_TYPE} with {@link #toWorkingType}, so that
+ * operations always take the fast path, and converts back only where a file format needs it, with
+ * {@link #toWritableType}.
+ * </p>
+ *
+ * <p>
+ * Pixels should be read with {@link #read(int)} and written with {@link #write(int, int)}, which
+ * account for images with no alpha channel: their pixels read as opaque, as they do from getRGB.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @see ImageOperation
+ * @version 1.0
+ */
+public final class PixelBuffer {
+
+    /** The type of image ANDIE works on: packed, non-premultiplied ARGB. */
+    public static final int WORKING_TYPE = BufferedImage.TYPE_INT_ARGB;
+
+    /** The width of the image, in pixels. */
+    public final int width;
+    /** The height of the image, in pixels. */
+    public final int height;
+    /** The pixels, packed as ARGB. */
+    final int[] data;
+    /** The index in {@link #data} of the top-left pixel. */
+    final int offset;
+    /** The difference in index between a pixel and the one below it. */
+    final int stride;
+    /** Bits set on every pixel read, so that images with no alpha channel read as opaque. */
+    private final int readBits;
+    /** The bits of a pixel that are stored. */
+    private final int writeMask;
+    /** The image the pixels belong to. */
+    private final BufferedImage image;
+    /** True if {@link #data} is the image's own storage rather than a copy. */
+    private final boolean direct;
+
+    /**
+     * <p>
+     * Create a PixelBuffer for an image.
+     * </p>
+     *
+     * @param image The image.
+     */
+    public PixelBuffer(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            this.data = buffer.getData();
+            this.offset = buffer.getOffset()
+                    + model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+            this.stride = model.getScanlineStride();
+            this.direct = true;
+            boolean opaque = (type == BufferedImage.TYPE_INT_RGB);
+            this.readBits = opaque ? 0xFF000000 : 0;
+            this.writeMask = opaque ? 0x00FFFFFF : 0xFFFFFFFF;
+        } else {
+            this.data = image.getRGB(0, 0, width, height, null, 0, width);
+            this.offset = 0;
+            this.stride = width;
+            this.direct = false;
+            this.readBits = 0;
+            this.writeMask = 0xFFFFFFFF;
+        }
+    }
+
+    /**
+     * <p>
+     * Create an image for an operation to write its result to, with a PixelBuffer of its own.
+     * </p>
+     *
+     * <p>
+     * The image has the same type as the input where possible, as operations have always made.
+     * </p>
+     *
+     * @param input The image the operation is applied to.
+     * @param width The width of the result.
+     * @param height The height of the result.
+     * @return A PixelBuffer for a new, transparent image.
+     */
+    public static PixelBuffer createFor(BufferedImage input, int width, int height) {
+        int type = input.getType();
+        if (type == BufferedImage.TYPE_CUSTOM) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        }
+        return new PixelBuffer(new BufferedImage(width, height, type));
+    }
+
+    /**
+     * <p>
+     * Convert an image to {@link #WORKING_TYPE}, such as when it has just been read from a file.
+     * </p>
+     *
+     * <p>
+     * Each pixel of the result is the pixel {@link BufferedImage#getRGB(int, int)} gives for the image,
+     * so operations get the same results as they would on the image itself.
+     * </p>
+     *
+     * @param image The image.
+     * @return The image itself if it is already of the working type, or else a converted copy.
+     */
+    public static BufferedImage toWorkingType(BufferedImage image) {
+        int type = image.getType();
+        if (type == WORKING_TYPE) {
+            return image;
+        }
+        BufferedImage working = new BufferedImage(image.getWidth(), image.getHeight(), WORKING_TYPE);
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+                || type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_BGR
+                || type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY) {
+            // Drawing gives exactly the same pixels for these types, several times faster
+            Graphics2D g = working.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+        } else {
+            // Premultiplied, grey and custom types are converted differently by drawing, so copy them exactly
+            PixelBuffer pixels = new PixelBuffer(working);
+            image.getRGB(0, 0, pixels.width, pixels.height, pixels.data, pixels.offset, pixels.stride);
+        }
+        return working;
+    }
+
+    /**
+     * <p>
+     * Get a version of an image that can be written in a file format.
+     * </p>
+     *
+     * <p>
+     * Some formats, such as JPEG and BMP, cannot store an alpha channel, and ImageIO writes nothing
+     * at all for an image that has one. Such images are converted to {@link BufferedImage#TYPE_INT_RGB}
+     * by dropping the alpha channel.
+     * </p>
+     *
+     * @param image The image to write.
+     * @param format The informal name of the format, such as "png" or "jpeg".
+     * @return The image itself if the format can store it as it is, or else an opaque copy.
+     */
+    public static BufferedImage toWritableType(BufferedImage image, String format) {
+        if (!image.getColorModel().hasAlpha()
+                || ImageIO.getImageWriters(ImageTypeSpecifier.createFromRenderedImage(image), format).hasNext()) {
+            return image;
+        }
+        PixelBuffer in = new PixelBuffer(image);
+        PixelBuffer out = new PixelBuffer(new BufferedImage(in.width, in.height, BufferedImage.TYPE_INT_RGB));
+        for (int y = 0; y < in.height; y++) {
+            int row = in.index(0, y);
+            int outRow = out.index(0, y);
+            for (int x = 0; x < in.width; x++) {
+                out.write(outRow + x, in.read(row + x));
+            }
+        }
+        return out.commit();
+    }
+
+    /**
+     * <p>
+     * Get the index of a pixel in {@link #data}.
+     * </p>
+     *
+     * @param x The pixel's x coordinate.
+     * @param y The pixel's y coordinate.
+     * @return The pixel's index.
+     */
+    public int index(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    /**
+     * <p>
+     * Read a pixel.
+     * </p>
+     *
+     * @param index The pixel's index in {@link #data}.
+     * @return The pixel, packed as by {@link BufferedImage#getRGB(int, int)}.
+     */
+    public int read(int index) {
+        return data[index] | readBits;
+    }
+
+    /**
+     * <p>
+     * Write a pixel.
+     * </p>
+     *
+     * @param index The pixel's index in {@link #data}.
+     * @param argb The pixel, packed as by {@link BufferedImage#getRGB(int, int)}.
+     */
+    public void write(int index, int argb) {
+        data[index] = argb & writeMask;
+    }
+
+    /**
+     * <p>
+     * Make sure the image has every change made to the pixels.
+     * </p>
+     *
+     * <p>
+     * This does nothing for an image whose storage the buffer uses directly, and copies the pixels
+     * back to any other.
+     * </p>
+     *
+     * @return The image.
+     */
+    public BufferedImage commit() {
+        if (!direct) {
+            image.setRGB(0, 0, width, height, data, 0, width);
+        }
+        return image;
+    }
+
+}
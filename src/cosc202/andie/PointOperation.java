@@ -0,0 +1,47 @@
+package cosc202.andie;
+
+/**
+ * <p>
+ * Interface for operations that change each pixel based only on its own value.
+ * </p>
+ * 
+ * <p>
+ * Colour adjustments such as greyscale conversion, brightness and contrast compute each 
+ * output pixel from the matching input pixel alone. Because of this, a run of them can be 
+ * combined into a single pass over the image by a {@link PointOperationChain}, rather than 
+ * each making its own pass.
+ * </p>
+ * 
+ * <p>
+ * Operations that apply the same mapping to each of the red, green and blue values, and leave 
+ * alpha alone, can also provide that mapping as a lookup table. Consecutive lookup tables are 
+ * composed into one, so any number of such adjustments costs a single table lookup per value.
+ * </p>
+ * 
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ * 
+ * @see PointOperationChain
+ * @version 1.0
+ */
+public interface PointOperation extends ImageOperation {
+
+    /**
+     * Apply the operation to a single pixel.
+     * 
+     * @param argb The pixel's value, packed as in {@link java.awt.image.BufferedImage#getRGB(int, int)}.
+     * @return The new value of the pixel.
+     */
+    public int filterRGB(int argb);
+
+    /**
+     * Get the operation as a lookup table on colour values.
+     * 
+     * @return A table of 256 entries mapping each red, green and blue value to its new value,
+     *         or null if the operation cannot be expressed this way.
+     */
+    public default int[] getLookupTable() {
+        return null;
+    }
+}
@@ -0,0 +1,301 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * <p>
+ * A cache of rendered images on disk that lasts between runs of ANDIE.
+ * </p>
+ *
+ * <p>
+ * Opening an image with a <code>.ops</code> file replays every operation in it, which for a long
+ * stack of slow filters can take far longer than reading the result would. The RenderCache keeps
+ * rendered states of images in a directory, so that reopening an image that was edited before can
+ * start from the deepest state already rendered.
+ * </p>
+ *
+ * <p>
+ * Each state is keyed by a content hash: the key of the original image is a hash of its file, and
+ * the key after each operation is a hash of the previous key and the operation's
+ * {@link OperationCodec} record. The same image with the same operations therefore finds the
+ * same entries, wherever the files have been moved to, while any change to either does not.
+ * Keys also include {@link #RENDER_VERSION}, so that images rendered by an older version of ANDIE,
+ * whose operations gave different results for the same records, are not found.
+ * </p>
+ *
+ * <p>
+ * Images are stored uncompressed, so they can be read back about as fast as the disk allows.
+ * When the total size of the cache exceeds its budget, the least recently used entries are
+ * deleted. Since it is only a cache, any problem reading or writing it is treated as a miss.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @see EditableImage
+ * @version 1.0
+ */
+class RenderCache {
+
+    /** The first bytes of every cached image file. */
+    private static final int MAGIC = 0x414E4452;
+    /** The size of the header before an image's data: magic, type, width and height. */
+    private static final int HEADER_SIZE = 16;
+    /** The extension of cached image files. */
+    private static final String EXTENSION = ".img";
+    /**
+     * The version of the images operations render. This must be increased whenever a change to 
+     * an operation changes the result of applying it, even though its record stays the same.
+     */
+    static final int RENDER_VERSION = 1;
+
+    /** The directory holding the cached images. */
+    private final File directory;
+    /** The maximum number of bytes of cached images to keep. */
+    private final long budget;
+
+    /**
+     * <p>
+     * Create a RenderCache. The directory is not created until an image is stored.
+     * </p>
+     *
+     * @param directory The directory to keep cached images in.
+     * @param budget The maximum number of bytes of cached images to keep.
+     */
+    RenderCache(File directory, long budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * <p>
+     * Compute the key of an original image from the contents of its file.
+     * </p>
+     *
+     * @param imageFile The image file.
+     * @return The key.
+     * @throws IOException If the file could not be read.
+     */
+    static String hash(File imageFile) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new FileInputStream(imageFile)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * <p>
+     * Compute the key of each state of an operation stack.
+     * </p>
+     *
+     * <p>
+     * If an operation cannot be encoded, the states from it on have no key.
+     * </p>
+     *
+     * @param originalKey The key of the original image, or null if it has none.
+     * @param ops The operations applied to it.
+     * @return The key after each number of operations, from 0 (the original) to all of them.
+     */
+    static String[] prefixKeys(String originalKey, List<ImageOperation> ops) {
+        String[] keys = new String[ops.size() + 1];
+        keys[0] = originalKey;
+        if (originalKey == null) {
+            return keys;
+        }
+        MessageDigest digest = newDigest();
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        try {
+            for (int i = 0; i < ops.size(); i++) {
+                out.writeInt(RENDER_VERSION);
+                out.writeUTF(keys[i]);
+                OperationCodec.writeRecord(out, ops.get(i));
+                out.flush();
+                keys[i + 1] = HexFormat.of().formatHex(digest.digest());
+            }
+        } catch (IOException ex) {
+            // The operation could not be encoded, so neither it nor anything after it can be cached.
+        }
+        return keys;
+    }
+
+    /**
+     * <p>
+     * Check whether an image is cached.
+     * </p>
+     *
+     * @param key The key to look for, or null.
+     * @return True if there is an image stored under the key.
+     */
+    boolean contains(String key) {
+        return key != null && fileFor(key).isFile();
+    }
+
+    /**
+     * <p>
+     * Read a cached image, marking it as recently used.
+     * </p>
+     *
+     * <p>
+     * An entry that cannot be read is deleted.
+     * </p>
+     *
+     * @param key The key the image was stored under.
+     * @return The image, or null if there is none.
+     */
+    BufferedImage get(String key) {
+        if (!contains(key)) {
+            return null;
+        }
+        File file = fileFor(key);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a cached image");
+            }
+            int type = buffer.getInt();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            BufferedImage image = new BufferedImage(width, height, type);
+            WritableRaster raster = image.getRaster();
+            Object data = raster.getDataElements(0, 0, width, height, null);
+            if (buffer.remaining() != TiledImage.sizeOf(data)) {
+                throw new IOException("Cached image is the wrong size");
+            }
+            if (data instanceof byte[]) {
+                buffer.get((byte[]) data);
+            } else if (data instanceof short[]) {
+                buffer.asShortBuffer().get((short[]) data);
+            } else if (data instanceof int[]) {
+                buffer.asIntBuffer().get((int[]) data);
+            } else {
+                throw new IOException("Unsupported transfer type");
+            }
+            raster.setDataElements(0, 0, width, height, data);
+            file.setLastModified(System.currentTimeMillis());
+            return image;
+        } catch (IOException | RuntimeException ex) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Store an image, deleting the least recently used images if the cache is over its budget.
+     * </p>
+     *
+     * <p>
+     * Images of a custom or indexed type, whose colours cannot be rebuilt from the type alone, 
+     * and images larger than the budget, are not stored.
+     * The image is written to a temporary file first, so a partly written image is never found.
+     * </p>
+     *
+     * @param key The key to store the image under.
+     * @param image The image to store.
+     */
+    void put(String key, BufferedImage image) {
+        int type = image.getType();
+        if (key == null || type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_BINARY
+                || type == BufferedImage.TYPE_BYTE_INDEXED) {
+            return;
+        }
+        Object data = image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
+        long bytes = HEADER_SIZE + TiledImage.sizeOf(data);
+        if (bytes > budget || bytes > Integer.MAX_VALUE) {
+            return;
+        }
+        File temp = null;
+        try {
+            directory.mkdirs();
+            temp = File.createTempFile("render", ".tmp", directory);
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                buffer.putInt(MAGIC).putInt(type).putInt(image.getWidth()).putInt(image.getHeight());
+                if (data instanceof byte[]) {
+                    buffer.put((byte[]) data);
+                } else if (data instanceof short[]) {
+                    buffer.asShortBuffer().put((short[]) data);
+                } else if (data instanceof int[]) {
+                    buffer.asIntBuffer().put((int[]) data);
+                } else {
+                    throw new IOException("Unsupported transfer type");
+                }
+            }
+            Files.move(temp.toPath(), fileFor(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // Could be out of disk space or something else. It is only a cache, so carry on.
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * <p>
+     * Delete the least recently used images until the cache is within its budget.
+     * </p>
+     */
+    private void trim() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+        long used = 0;
+        for (File file : files) {
+            used += file.length();
+        }
+        if (used <= budget) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && used > budget; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                used -= length;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Get the file an image is stored in.
+     * </p>
+     *
+     * @param key The image's key.
+     * @return The file, which may not exist.
+     */
+    private File fileFor(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+
+    /**
+     * <p>
+     * Create the digest used for keys.
+     * </p>
+     *
+     * @return A new SHA-256 digest.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
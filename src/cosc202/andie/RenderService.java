@@ -0,0 +1,807 @@
+package cosc202.andie;
+
+import com.sun.net.httpserver.*;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * <p>
+ * A small local HTTP service that applies operations to submitted images.
+ * </p>
+ *
+ * <p>
+ * Clients <code>POST</code> a <code>multipart/form-data</code> request to <code>/render</code> with an
+ * <code>ops</code> part (a binary operations file, as saved by ANDIE) and an <code>image</code> part,
+ * and get the rendered image back, as PNG unless another format is asked for with
+ * <code>?format=</code>. For example:
+ * </p>
+ *
+ * <pre>
+ * curl -F ops=@edit.ops -F image=@in.jpg -o out.png http://localhost:8080/render
+ * </pre>
+ *
+ * <p>
+ * Requests are rendered on a fixed pool of worker threads. Only that many requests, plus a bounded
+ * queue, are admitted at once; any more are turned away straight away with <code>503 Service
+ * Unavailable</code> and a <code>Retry-After</code> header, rather than queueing without limit. A
+ * request's body is read before it is admitted, and a client that takes longer than the read timeout
+ * to send it is disconnected, so slow clients cannot hold the service's capacity. Only one more body
+ * than can be admitted is read at once, and requests beyond that are turned away too. Requests are
+ * handled on a fixed number of threads with no queue in front of them, so when every thread is busy,
+ * new connections are closed at once. A render that takes longer than the render timeout is
+ * abandoned. Each response reports how long the request spent queued, decoding, rendering and
+ * encoding in a <code>Server-Timing</code> header, and running totals are served as plain text from
+ * <code>/metrics</code>.
+ * </p>
+ *
+ * <p>
+ * Memory use is bounded rather than small. A body is held while it is read and for as long as its
+ * request is admitted, so at most 2 &times; capacity + 1 bodies of up to the largest request size are
+ * held at once, where the capacity is the number of threads plus the length of the queue. With the
+ * command line's defaults on a 16-core machine, that is 97 bodies of up to 64 MB; a smaller largest
+ * request size can be given to the constructor. Each worker holds one image, which is refused before
+ * it is decoded if it, or any intermediate result of its operations, would be larger than
+ * {@link #MAX_PIXELS} pixels, and the operations' parameters are limited to those ANDIE's own menus
+ * offer.
+ * </p>
+ *
+ * <p>
+ * The service listens on the loopback address only. Operations are read with
+ * {@link OperationCodec#readUntrusted(InputStream)}, so requests cannot make it deserialise objects.
+ * </p>
+ *
+ * <p>
+ * Usage: <code>java cosc202.andie.RenderService [port] [threads] [queue]</code>
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @version 1.0
+ */
+public class RenderService {
+
+    /** The default port to listen on. */
+    public static final int DEFAULT_PORT = 8080;
+    /** The default largest request accepted, in bytes. */
+    public static final long DEFAULT_MAX_REQUEST_BYTES = 64L * 1024 * 1024;
+    /** The default longest time to wait for a request's body to arrive, in milliseconds. */
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;
+    /** The default longest time to wait for a request to be rendered, in milliseconds. */
+    public static final long DEFAULT_RENDER_TIMEOUT_MILLIS = 60 * 1000;
+    /** The largest image accepted, or produced by any step of a render, in pixels. */
+    public static final long MAX_PIXELS = 40L * 1000 * 1000;
+    /** The number of requests that can be turned away at once while the rest of their bodies arrive. */
+    private static final int REJECTING_THREADS = 2;
+    /** The longest time to wait for the rest of a turned away request's body, in milliseconds. */
+    private static final long REJECT_READ_MILLIS = 1000;
+    /** The number of threads for requests that have no body to read, such as those to /metrics. */
+    private static final int SPARE_THREADS = 2;
+
+    /**
+     * <p>
+     * A rendered image, and how long each stage of rendering it took.
+     * </p>
+     */
+    private static class Rendered {
+        /** The encoded image. */
+        byte[] bytes;
+        /** The time spent waiting for a worker thread, in nanoseconds. */
+        long queueNanos;
+        /** The time spent decoding the image, in nanoseconds. */
+        long decodeNanos;
+        /** The time spent applying the operations, in nanoseconds. */
+        long renderNanos;
+        /** The time spent encoding the result, in nanoseconds. */
+        long encodeNanos;
+    }
+
+    /** The HTTP server. */
+    private final HttpServer server;
+    /** The threads that render images. */
+    private final ExecutorService workers;
+    /** The threads that handle requests. */
+    private final ExecutorService handlers;
+    /** Closes the connections of requests whose bodies take too long to arrive. */
+    private final ScheduledExecutorService timer;
+    /** Permits for requests being handled, either rendering or queued. */
+    private final Semaphore admission;
+    /** Permits for requests whose bodies are being read. */
+    private final Semaphore reading;
+    /** Permits for requests being turned away while the rest of their bodies arrive. */
+    private final Semaphore rejecting;
+    /** The total number of permits in {@link #admission}. */
+    private final int capacity;
+    /** The largest request accepted, in bytes. */
+    private final long maxRequestBytes;
+    /** The longest time to wait for a request's body to arrive, in milliseconds. */
+    private final long readTimeoutMillis;
+    /** The longest time to wait for a request to be rendered, in milliseconds. */
+    private final long renderTimeoutMillis;
+
+    /** The number of render requests received. */
+    private final AtomicLong requests = new AtomicLong();
+    /** The number of render requests turned away because the service was busy. */
+    private final AtomicLong rejected = new AtomicLong();
+    /** The number of render requests that failed. */
+    private final AtomicLong failed = new AtomicLong();
+    /** The number of render requests that succeeded. */
+    private final AtomicLong completed = new AtomicLong();
+    /** The total time of each stage over all successful requests, in nanoseconds. */
+    private final LongAdder queueNanos = new LongAdder(), decodeNanos = new LongAdder(),
+            renderNanos = new LongAdder(), encodeNanos = new LongAdder(), totalNanos = new LongAdder();
+
+    /**
+     * <p>
+     * Create a RenderService with the default timeouts. It does not accept requests until it is {@link #start}ed.
+     * </p>
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @param threads The number of images to render at once.
+     * @param queue The number of further requests to accept while all the threads are busy.
+     * @param maxRequestBytes The largest request to accept, in bytes.
+     * @throws IOException If the port could not be opened.
+     */
+    public RenderService(int port, int threads, int queue, long maxRequestBytes) throws IOException {
+        this(port, threads, queue, maxRequestBytes, DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_RENDER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * <p>
+     * Create a RenderService. It does not accept requests until it is {@link #start}ed.
+     * </p>
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @param threads The number of images to render at once.
+     * @param queue The number of further requests to accept while all the threads are busy.
+     * @param maxRequestBytes The largest request to accept, in bytes.
+     * @param readTimeoutMillis The longest time to wait for a request's body to arrive, in milliseconds.
+     * @param renderTimeoutMillis The longest time to wait for a request to be rendered, in milliseconds.
+     * @throws IOException If the port could not be opened.
+     */
+    public RenderService(int port, int threads, int queue, long maxRequestBytes, long readTimeoutMillis,
+            long renderTimeoutMillis) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.capacity = Math.max(1, threads) + Math.max(0, queue);
+        this.admission = new Semaphore(capacity);
+        // One more body than can be admitted, so a slow client does not turn every other one away
+        this.reading = new Semaphore(capacity + 1);
+        this.rejecting = new Semaphore(REJECTING_THREADS);
+        this.maxRequestBytes = maxRequestBytes;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.renderTimeoutMillis = renderTimeoutMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        server.createContext("/render", this::handleRender);
+        server.createContext("/metrics", this::handleMetrics);
+        // A thread for each body that can be read, each request that can be admitted, and each that can
+        // be turned away, and a couple more to answer /metrics. There is no queue, so when they are all
+        // busy the server closes new connections at once, as no request has been read to answer yet.
+        int handlerThreads = (capacity + 1) + capacity + REJECTING_THREADS + SPARE_THREADS;
+        this.handlers = new ThreadPoolExecutor(handlerThreads, handlerThreads, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), (task, executor) -> {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("No thread free to handle a request");
+                });
+        server.setExecutor(handlers);
+    }
+
+    /**
+     * <p>
+     * Start accepting requests.
+     * </p>
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * <p>
+     * Stop accepting requests, and stop the service once those in progress have finished.
+     * </p>
+     *
+     * @param delay The longest time to wait for requests in progress, in seconds.
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        workers.shutdown();
+        handlers.shutdown();
+        timer.shutdown();
+    }
+
+    /**
+     * <p>
+     * Get the port the service is listening on.
+     * </p>
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * <p>
+     * Handle a request to <code>/render</code>.
+     * </p>
+     *
+     * @param exchange The request and response.
+     * @throws IOException If the response could not be sent.
+     */
+    private void handleRender(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "Use POST");
+                return;
+            }
+            requests.incrementAndGet();
+            if (!reading.tryAcquire()) {
+                turnAway(exchange);
+                return;
+            }
+            byte[] body;
+            try {
+                body = readBody(exchange);
+            } finally {
+                reading.release();
+            }
+            if (body == null) {
+                return;
+            }
+            if (!admission.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 503, "Busy, try again later");
+                return;
+            }
+            render(exchange, body, start);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Read a request's body, up to the largest request accepted.
+     * </p>
+     *
+     * <p>
+     * If the whole body has not arrived within the read timeout, the connection is closed, so that
+     * a slow client cannot hold a thread for longer than that. A body that is too large is not read
+     * at all if its length is given in advance, and the connection is closed once it has been answered.
+     * </p>
+     *
+     * @param exchange The request and response.
+     * @return The body, or null if the request has already been answered or its connection closed.
+     * @throws IOException If the response could not be sent.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (length != null && Long.parseLong(length.trim()) > maxRequestBytes) {
+                failed.incrementAndGet();
+                // With no response body, the server closes the connection instead of reading the rest of the request
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(413, -1);
+                return null;
+            }
+        } catch (NumberFormatException ex) {
+            // Let the server's own reading of the body deal with it
+        }
+        ScheduledFuture<?> timeout = timer.schedule(exchange::close, readTimeoutMillis, TimeUnit.MILLISECONDS);
+        byte[] body;
+        try {
+            body = exchange.getRequestBody().readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxRequestBytes + 1));
+        } catch (IOException ex) {
+            // Closed by the timeout, or by the client
+            body = null;
+        }
+        if (!timeout.cancel(false) || body == null) {
+            failed.incrementAndGet();
+            return null;
+        }
+        if (body.length > maxRequestBytes) {
+            failed.incrementAndGet();
+            sendText(exchange, 413, "Request is larger than " + maxRequestBytes + " bytes");
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * <p>
+     * Turn away a request whose body has not been read, because too many bodies are being read already.
+     * </p>
+     *
+     * <p>
+     * The rest of the body is read first, for at most a short time, since answering while the client is
+     * still sending can reset the connection before the client reads the answer, and HttpURLConnection
+     * then sends the request again. A client that takes longer than that, or any request beyond the
+     * number that can be turned away at once, is disconnected without an answer.
+     * </p>
+     *
+     * @param exchange The request and response.
+     * @throws IOException If the response could not be sent.
+     */
+    private void turnAway(HttpExchange exchange) throws IOException {
+        rejected.incrementAndGet();
+        if (!rejecting.tryAcquire()) {
+            return;
+        }
+        try {
+            ScheduledFuture<?> timeout = timer.schedule(exchange::close, Math.min(readTimeoutMillis, REJECT_READ_MILLIS),
+                    TimeUnit.MILLISECONDS);
+            long left = maxRequestBytes;
+            try {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                int read;
+                while (left >= 0 && (read = in.read(buffer)) >= 0) {
+                    left -= read;
+                }
+            } catch (IOException ex) {
+                // Closed by the timeout, or by the client
+                left = -1;
+            }
+            if (!timeout.cancel(false) || left < 0) {
+                return;
+            }
+        } finally {
+            rejecting.release();
+        }
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendText(exchange, 503, "Busy, try again later");
+    }
+
+    /**
+     * <p>
+     * Render and answer an admitted request.
+     * </p>
+     *
+     * <p>
+     * The request's admission permit is given back once nothing more will be done for it. For a render
+     * that takes longer than the render timeout, that is not until the render stops, which is after the
+     * operation it is part way through, so abandoned renders still count towards the service's capacity.
+     * </p>
+     *
+     * @param exchange The request and response.
+     * @param body The request's body.
+     * @param start When the request was received, from {@link System#nanoTime()}.
+     * @throws IOException If the response could not be sent.
+     */
+    private void render(HttpExchange exchange, byte[] body, long start) throws IOException {
+        // Set by whichever of the render starting and the render being abandoned happens first
+        AtomicBoolean claimed = new AtomicBoolean();
+        String format = getQueryParameter(exchange.getRequestURI(), "format", "png").toLowerCase();
+        Map<String, byte[]> parts;
+        List<ImageOperation> ops;
+        try {
+            if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                throw new IOException("Unknown format: " + format);
+            }
+            parts = parseMultipart(body, exchange.getRequestHeaders().getFirst("Content-Type"));
+            if (!parts.containsKey("ops") || !parts.containsKey("image")) {
+                throw new IOException("Expected 'ops' and 'image' parts");
+            }
+            ops = OperationCodec.readUntrusted(new ByteArrayInputStream(parts.get("ops")));
+        } catch (IOException ex) {
+            admission.release();
+            failed.incrementAndGet();
+            sendText(exchange, 400, ex.getMessage());
+            return;
+        }
+
+        long queued = System.nanoTime();
+        Future<Rendered> future;
+        try {
+            future = workers.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    // Abandoned before it started, and the permit given back then
+                    return null;
+                }
+                try {
+                    return render(parts.get("image"), ops, format, queued);
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            admission.release();
+            failed.incrementAndGet();
+            sendText(exchange, 503, "Shutting down");
+            return;
+        }
+
+        Rendered rendered;
+        try {
+            rendered = future.get(renderTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            abandon(future, claimed);
+            failed.incrementAndGet();
+            sendText(exchange, 503, "Rendering took longer than " + renderTimeoutMillis + " ms");
+            return;
+        } catch (ExecutionException ex) {
+            failed.incrementAndGet();
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                sendText(exchange, 400, cause.getMessage());
+            } else {
+                sendText(exchange, 500, String.valueOf(cause));
+            }
+            return;
+        } catch (InterruptedException ex) {
+            abandon(future, claimed);
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "Shutting down");
+            return;
+        }
+
+        long total = System.nanoTime() - start;
+        completed.incrementAndGet();
+        queueNanos.add(rendered.queueNanos);
+        decodeNanos.add(rendered.decodeNanos);
+        renderNanos.add(rendered.renderNanos);
+        encodeNanos.add(rendered.encodeNanos);
+        totalNanos.add(total);
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", "image/" + format);
+        headers.set("Server-Timing", String.format(Locale.ROOT,
+                "queue;dur=%.1f, decode;dur=%.1f, render;dur=%.1f, encode;dur=%.1f, total;dur=%.1f",
+                rendered.queueNanos / 1e6, rendered.decodeNanos / 1e6, rendered.renderNanos / 1e6,
+                rendered.encodeNanos / 1e6, total / 1e6));
+        exchange.sendResponseHeaders(200, rendered.bytes.length);
+        exchange.getResponseBody().write(rendered.bytes);
+    }
+
+    /**
+     * <p>
+     * Decode, render and encode an image, on a worker thread.
+     * </p>
+     *
+     * <p>
+     * If the thread is interrupted, because the render was abandoned, it stops after the current operation.
+     * </p>
+     *
+     * @param imageBytes The encoded image.
+     * @param ops The operations to apply.
+     * @param format The format to encode the result in.
+     * @param queued When the render was queued, from {@link System#nanoTime()}.
+     * @return The encoded result, and how long each stage took.
+     * @throws IOException If the image could not be decoded or encoded.
+     */
+    private static Rendered render(byte[] imageBytes, List<ImageOperation> ops, String format, long queued) throws IOException {
+        Rendered rendered = new Rendered();
+        long time = System.nanoTime();
+        rendered.queueNanos = time - queued;
+        BufferedImage image = decode(imageBytes, ops);
+        image = PixelBuffer.toWorkingType(image);
+        rendered.decodeNanos = System.nanoTime() - time;
+        time = System.nanoTime();
+        image = OperationPipeline.apply(image, ops, (applied, step) -> {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+        });
+        rendered.renderNanos = System.nanoTime() - time;
+        time = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(PixelBuffer.toWritableType(image, format), format, out)) {
+            throw new IOException("Cannot write this image as " + format);
+        }
+        rendered.bytes = out.toByteArray();
+        rendered.encodeNanos = System.nanoTime() - time;
+        return rendered;
+    }
+
+    /**
+     * <p>
+     * Decode an image, if neither it nor any step of rendering it would be too large.
+     * </p>
+     *
+     * <p>
+     * The image's size is read from its header, so an image that would be too large is never decoded.
+     * </p>
+     *
+     * @param imageBytes The encoded image.
+     * @param ops The operations that will be applied to it.
+     * @return The decoded image.
+     * @throws IOException If the image could not be decoded, would be too large, or does not fit a crop.
+     */
+    private static BufferedImage decode(byte[] imageBytes, List<ImageOperation> ops) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("Not a readable image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                checkSizes(reader.getWidth(0), reader.getHeight(0), ops);
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Check that an image, and the result of each step of applying operations to it, is no larger
+     * than {@link #MAX_PIXELS} and not empty, and that every crop fits the image it is applied to.
+     * </p>
+     *
+     * @param width The image's width.
+     * @param height The image's height.
+     * @param ops The operations that will be applied to it.
+     * @throws IOException If an image would be too large or empty, or a crop does not fit.
+     */
+    private static void checkSizes(int width, int height, List<ImageOperation> ops) throws IOException {
+        Dimension size = new Dimension(width, height);
+        checkSize(size);
+        for (ImageOperation op : ops) {
+            if (op instanceof Cropper) {
+                Cropper crop = (Cropper) op;
+                if ((long) crop.getX() + crop.getWidth() > size.width || (long) crop.getY() + crop.getHeight() > size.height) {
+                    throw new IOException("Crop does not fit a " + size.width + "x" + size.height + " image");
+                }
+            }
+            size = op.getResultSize(size.width, size.height);
+            checkSize(size);
+        }
+    }
+
+    /**
+     * <p>
+     * Check that an image size is no larger than {@link #MAX_PIXELS} and not empty.
+     * </p>
+     *
+     * @param size The size.
+     * @throws IOException If it is too large or empty.
+     */
+    private static void checkSize(Dimension size) throws IOException {
+        if (size.width < 1 || size.height < 1 || (long) size.width * size.height > MAX_PIXELS) {
+            throw new IOException("Image size " + size.width + "x" + size.height + " is not allowed; the largest is "
+                    + MAX_PIXELS + " pixels");
+        }
+    }
+
+    /**
+     * <p>
+     * Give up waiting for a render, stopping it if it has started.
+     * </p>
+     *
+     * @param future The render.
+     * @param claimed Set once the render has started or been abandoned.
+     */
+    private void abandon(Future<Rendered> future, AtomicBoolean claimed) {
+        future.cancel(true);
+        if (claimed.compareAndSet(false, true)) {
+            // It will never start, so give its permit back now
+            admission.release();
+        }
+    }
+
+    /**
+     * <p>
+     * Handle a request to <code>/metrics</code>, reporting counts and total stage times as plain text.
+     * </p>
+     *
+     * @param exchange The request and response.
+     * @throws IOException If the response could not be sent.
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder text = new StringBuilder();
+            text.append("andie_requests_total ").append(requests.get()).append('\n');
+            text.append("andie_requests_completed ").append(completed.get()).append('\n');
+            text.append("andie_requests_rejected ").append(rejected.get()).append('\n');
+            text.append("andie_requests_failed ").append(failed.get()).append('\n');
+            text.append("andie_requests_in_flight ").append(capacity - admission.availablePermits()).append('\n');
+            text.append("andie_requests_capacity ").append(capacity).append('\n');
+            appendSeconds(text, "queue", queueNanos);
+            appendSeconds(text, "decode", decodeNanos);
+            appendSeconds(text, "render", renderNanos);
+            appendSeconds(text, "encode", encodeNanos);
+            appendSeconds(text, "total", totalNanos);
+            sendText(exchange, 200, text.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Add a line with the total time spent in a stage to a metrics report.
+     * </p>
+     *
+     * @param text The report.
+     * @param stage The name of the stage.
+     * @param nanos The total time spent in it, in nanoseconds.
+     */
+    private static void appendSeconds(StringBuilder text, String stage, LongAdder nanos) {
+        text.append("andie_stage_seconds_total{stage=\"").append(stage).append("\"} ")
+                .append(String.format(Locale.ROOT, "%.6f", nanos.sum() / 1e9)).append('\n');
+    }
+
+    /**
+     * <p>
+     * Send a plain text response.
+     * </p>
+     *
+     * @param exchange The request and response.
+     * @param status The HTTP status code.
+     * @param message The text to send.
+     * @throws IOException If the response could not be sent.
+     */
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * <p>
+     * Get a parameter from a URI's query string.
+     * </p>
+     *
+     * @param uri The URI.
+     * @param name The name of the parameter.
+     * @param otherwise The value to use if the parameter is not given.
+     * @return The parameter's value.
+     */
+    private static String getQueryParameter(URI uri, String name, String otherwise) {
+        String query = uri.getQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    return pair.substring(equals + 1);
+                }
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * <p>
+     * Split a <code>multipart/form-data</code> body into its parts.
+     * </p>
+     *
+     * @param body The request body.
+     * @param contentType The request's Content-Type header, which gives the boundary between parts.
+     * @return The contents of each part, by name.
+     * @throws IOException If the body is not valid multipart data.
+     */
+    static Map<String, byte[]> parseMultipart(byte[] body, String contentType) throws IOException {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+            throw new IOException("Expected multipart/form-data");
+        }
+        String boundary = null;
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.toLowerCase().startsWith("boundary=")) {
+                boundary = parameter.substring("boundary=".length());
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+            }
+        }
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IOException("No multipart boundary");
+        }
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] separator = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        Map<String, byte[]> parts = new HashMap<String, byte[]>();
+        int position = indexOf(body, delimiter, 0);
+        if (position < 0) {
+            throw new IOException("Missing multipart boundary");
+        }
+        position += delimiter.length;
+        while (true) {
+            if (position + 2 <= body.length && body[position] == '-' && body[position + 1] == '-') {
+                return parts;
+            }
+            int headersStart = position + 2;
+            int headersEnd = indexOf(body, headerEnd, headersStart);
+            if (headersEnd < 0) {
+                throw new IOException("Truncated multipart headers");
+            }
+            int contentEnd = indexOf(body, separator, headersEnd + headerEnd.length);
+            if (contentEnd < 0) {
+                throw new IOException("Truncated multipart body");
+            }
+            String headers = new String(body, headersStart, headersEnd - headersStart, StandardCharsets.ISO_8859_1);
+            String name = getPartName(headers);
+            if (name != null) {
+                parts.put(name, Arrays.copyOfRange(body, headersEnd + headerEnd.length, contentEnd));
+            }
+            position = contentEnd + separator.length;
+        }
+    }
+
+    /**
+     * <p>
+     * Get the name of a multipart part from its headers.
+     * </p>
+     *
+     * @param headers The part's headers.
+     * @return The name given in its Content-Disposition header, or null if there is none.
+     */
+    private static String getPartName(String headers) {
+        for (String header : headers.split("\r\n")) {
+            if (!header.toLowerCase().startsWith("content-disposition:")) {
+                continue;
+            }
+            for (String parameter : header.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.startsWith("name=")) {
+                    String name = parameter.substring("name=".length());
+                    if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+                        name = name.substring(1, name.length() - 1);
+                    }
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>
+     * Find the first occurrence of a sequence of bytes in an array.
+     * </p>
+     *
+     * @param array The array to search.
+     * @param target The bytes to find.
+     * @param from The index to start searching from.
+     * @return The index of the first occurrence, or -1 if there is none.
+     */
+    private static int indexOf(byte[] array, byte[] target, int from) {
+        outer:
+        for (int i = Math.max(0, from); i <= array.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (array[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * <p>
+     * Run the service from the command line until it is stopped.
+     * </p>
+     *
+     * @param args Optionally, the port, the number of threads and the length of the queue.
+     * @throws Exception If the service could not be started.
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int queue = (args.length > 2) ? Integer.parseInt(args[2]) : 2 * threads;
+        RenderService service = new RenderService(port, threads, queue, DEFAULT_MAX_REQUEST_BYTES);
+        service.start();
+        System.out.println("ANDIE render service listening on http://localhost:" + service.getPort() + "/render");
+    }
+
+}
@@ -59,5 +59,26 @@ public class ResizeImage implements ImageOperation, java.io.Serializable {
 
         return output;
     }
-    
+
+    /**
+     * Get the size of the resized image.
+     * 
+     * @param width The width of the input image.
+     * @param height The height of the input image.
+     * @return The size of the resulting image.
+     */
+    @Override
+    public Dimension getResultSize(int width, int height) {
+        return new Dimension((int) (width * (resizePercent/100)), (int) (height * (resizePercent/100)));
+    }
+
+    /**
+     * Get the size to resize to.
+     * 
+     * @return The percentage of the current size to resize to.
+     */
+    public double getResizePercent() {
+        return resizePercent;
+    }
+
 }
@@ -1,5 +1,6 @@
 package cosc202.andie;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 /**
  * <p>
@@ -37,6 +38,15 @@ public  class RotateImage implements ImageOperation, java.io.Serializable {
         this.degrees = degrees;
     }
 
+    /**
+     * Get the angle of the rotation.
+     * 
+     * @return The degree of rotation, clockwise.
+     */
+    public int getDegrees() {
+        return degrees;
+    }
+
     /**
      * Method used to apply a rotation to an input BufferedImage. Refers to the degrees
      * data-field to apply the desired rotation.
@@ -55,6 +65,38 @@ public  class RotateImage implements ImageOperation, java.io.Serializable {
         }
     }
 
+    /**
+     * Returns the rotation that undoes this one. A quarter turn is undone by a quarter turn
+     * in the opposite direction, while a half turn is its own inverse.
+     * 
+     * @return The inverse rotation.
+     */
+    @Override
+    public ImageOperation inverse() {
+        if(degrees == 90){
+            return new RotateImage(-90);
+        }
+        if(degrees == -90){
+            return new RotateImage(90);
+        }
+        return this;
+    }
+
+    /**
+     * Get the size of the rotated image. A quarter turn swaps the width and height.
+     * 
+     * @param width The width of the input image.
+     * @param height The height of the input image.
+     * @return The size of the resulting image.
+     */
+    @Override
+    public Dimension getResultSize(int width, int height) {
+        if(degrees == 90 || degrees == -90){
+            return new Dimension(height, width);
+        }
+        return new Dimension(width, height);
+    }
+
     /**
      * Iterates through the pixels values of the input image to achieve a clockwise 90-degree
      * rotation.
@@ -65,13 +107,15 @@ public  class RotateImage implements ImageOperation, java.io.Serializable {
     public BufferedImage rotateClockwise90(BufferedImage inputImage) {
         int width = inputImage.getWidth();
         int height = inputImage.getHeight();
-        BufferedImage outputImage = new BufferedImage(height, width, inputImage.getType());
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                outputImage.setRGB(height - y - 1, x, inputImage.getRGB(x, y));
+        PixelBuffer in = new PixelBuffer(inputImage);
+        PixelBuffer out = PixelBuffer.createFor(inputImage, height, width);
+        for (int y = 0; y < height; y++) {
+            int row = in.index(0, y);
+            for (int x = 0; x < width; x++) {
+                out.write(out.index(height - y - 1, x), in.read(row + x));
             }
         }
-        return outputImage;
+        return out.commit();
     }
     /**
      * Iterates through the pixels values of the input image to achieve a counter-clockwise
@@ -83,13 +127,15 @@ public  class RotateImage implements ImageOperation, java.io.Serializable {
     public BufferedImage rotateCounterclockwise90(BufferedImage inputImage) {
         int width = inputImage.getWidth();
         int height = inputImage.getHeight();
-        BufferedImage outputImage = new BufferedImage(height, width, inputImage.getType());
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                outputImage.setRGB(y, width - x - 1, inputImage.getRGB(x, y));
+        PixelBuffer in = new PixelBuffer(inputImage);
+        PixelBuffer out = PixelBuffer.createFor(inputImage, height, width);
+        for (int y = 0; y < height; y++) {
+            int row = in.index(0, y);
+            for (int x = 0; x < width; x++) {
+                out.write(out.index(y, width - x - 1), in.read(row + x));
             }
         }
-        return outputImage;
+        return out.commit();
     }
     /**
      * Iterates through the pixels values of the input image to achieve a full
@@ -101,13 +147,15 @@ public  class RotateImage implements ImageOperation, java.io.Serializable {
     public BufferedImage rotate180(BufferedImage inputImage) {
         int width = inputImage.getWidth();
         int height = inputImage.getHeight();
-        BufferedImage outputImage = new BufferedImage(width, height, inputImage.getType());
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                outputImage.setRGB(width - x - 1, height - y - 1, inputImage.getRGB(x, y));
+        PixelBuffer in = new PixelBuffer(inputImage);
+        PixelBuffer out = PixelBuffer.createFor(inputImage, width, height);
+        for (int y = 0; y < height; y++) {
+            int row = in.index(0, y);
+            for (int x = 0; x < width; x++) {
+                out.write(out.index(width - x - 1, height - y - 1), in.read(row + x));
             }
         }
-        return outputImage;
+        return out.commit();
     }
     
 }
@@ -1,6 +1,5 @@
 package cosc202.andie;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
 /**
  * <p>
@@ -55,28 +54,20 @@ public class SobelFilter implements ImageOperation, java.io.Serializable{
      * @return the image with the Sobel filter applied.
      */
     public BufferedImage apply(BufferedImage input){
-        BufferedImage output = new BufferedImage(input.getWidth(), input.getHeight(),input.getType());
-
-        for(int x = 0; x < input.getWidth(); x++){
-            for(int y = 0; y < input.getHeight(); y++){
-                double[][] kernel = getKernel(option);
+        PixelBuffer in = new PixelBuffer(input);
+        PixelBuffer out = PixelBuffer.createFor(input, in.width, in.height);
+        double[][] kernel = getKernel(option);
 
+        for(int y = 0; y < in.height; y++){
+            for(int x = 0; x < in.width; x++){
                 int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
 
                 for (int i = 0; i < kernel.length; i++) {
+                    //Neighbours outside the image are replaced by the pixel in line with this one
+                    int yPos = (y + i < 0 || y + i >= in.height) ? y : y + i;
                     for (int j = 0; j < kernel[i].length; j++) {
-                        int xPos = x + j;
-                        int yPos = y + i;
-                        int argb;
-                        if((xPos < 0 || xPos >= input.getWidth()) && (yPos < 0 || yPos >= input.getHeight())){
-                            argb = input.getRGB(x, y);
-                        }else if(xPos < 0 || xPos >= input.getWidth()){
-                            argb = input.getRGB(x, yPos);
-                        }else if(yPos < 0 || yPos >= input.getHeight()){
-                            argb = input.getRGB(xPos, y);
-                        }else{
-                            argb = input.getRGB(xPos, yPos); 
-                        }
+                        int xPos = (x + j < 0 || x + j >= in.width) ? x : x + j;
+                        int argb = in.read(in.index(xPos, yPos));
                         int a = (argb & 0xFF000000) >> 24;
                         int r = (argb & 0x00FF0000) >> 16;
                         int g = (argb & 0x0000FF00) >> 8;
@@ -93,26 +84,13 @@ public class SobelFilter implements ImageOperation, java.io.Serializable{
                 int avg = (int)((sumA + sumR + sumG + sumB) / 4.0); 
                 int embossVal = MID_COLOR - avg;
 
-                Color embossColor;
-                if (embossVal < 0) {
-                    int darkerVal = Math.abs(embossVal);
-                    if(darkerVal < 0){
-                        darkerVal = 0;
-                    }
-                    embossColor = new Color(darkerVal, darkerVal, darkerVal);
-                } else {
-                    int brighterVal = Math.abs(embossVal);
-                    if(brighterVal > 255){
-                        brighterVal = 255;
-                    }
-                    embossColor = new Color(brighterVal, brighterVal, brighterVal);
-                }
-
-                output.setRGB(x, y, embossColor.getRGB());
+                //Negative values are reflected, and large ones clipped, to give an opaque grey
+                int grey = (embossVal < 0) ? -embossVal : Math.min(embossVal, 255);
+                out.write(out.index(x, y), 0xFF000000 | (grey << 16) | (grey << 8) | grey);
             }
         }
 
-        return output;
+        return out.commit();
     }
 
 
@@ -139,4 +117,14 @@ public class SobelFilter implements ImageOperation, java.io.Serializable{
         };
         return options[option];
     }
+
+    /**
+     * Get the direction of the filter.
+     * 
+     * @return The option the filter was created with.
+     */
+    public int getOption() {
+        return option;
+    }
+
 }
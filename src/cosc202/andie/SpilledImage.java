@@ -0,0 +1,296 @@
+package cosc202.andie;
+
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+
+/**
+ * <p>
+ * A copy of an image kept in a temporary file rather than in memory.
+ * </p>
+ *
+ * <p>
+ * When an {@link ImageCache} runs out of memory budget, it can spill its least recently used 
+ * images to disk instead of discarding them, so that they can still be read back more quickly
+ * than they could be recomputed. The raster data is written to, and read back from, the file
+ * through a memory-mapped buffer, one {@link TiledImage} tile at a time, so neither direction
+ * needs a second full-size copy of the image on the heap.
+ * </p>
+ *
+ * <p>
+ * Each file is mapped once, when it is written, and the same mapping is used for every read, so
+ * there is never more than one mapping of a file. Java cannot unmap a file directly, so the address
+ * space it takes (though not necessarily memory, as the pages are backed by the file) is only given
+ * back once the image has been deleted and its buffer is garbage collected.
+ * </p>
+ *
+ * <p>
+ * All files are kept in a single temporary directory. Each file is deleted as soon as its image
+ * is evicted, and the directory, with anything left in it, when ANDIE exits.
+ * Directories left behind by an instance of ANDIE that did not exit cleanly are deleted the 
+ * first time another instance spills an image. A lock file in each directory marks it as 
+ * still in use.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @version 1.0
+ */
+class SpilledImage {
+
+    /** The prefix of the names of the directories that spilled images are written to. */
+    private static final String DIRECTORY_PREFIX = "andie-history";
+    /** The name of the lock file in each directory. */
+    private static final String LOCK_NAME = ".lock";
+
+    /** The directory that spilled images are written to, created when first needed. */
+    private static File directory = null;
+    /** The channel holding the lock on {@link #directory}'s lock file for as long as ANDIE runs. */
+    private static FileChannel lockChannel = null;
+
+    /** The colour model of the image. */
+    private final ColorModel colorModel;
+    /** A sample model for the full image, used to rebuild it. */
+    private final SampleModel sampleModel;
+    /** Whether the image's alpha is premultiplied. */
+    private final boolean premultiplied;
+    /** The number of tiles across the image. */
+    private final int columns;
+    /** The number of tiles in the image. */
+    private final int count;
+    /** The file holding the tiles' data, in row-major order. */
+    private final File file;
+    /** The size of the file in bytes. */
+    private final long bytes;
+    /** The file mapped into memory, or null once it has been deleted. */
+    private MappedByteBuffer mapping;
+
+    /**
+     * <p>
+     * Write an image's tiles to a new temporary file.
+     * </p>
+     *
+     * @param colorModel The colour model of the image.
+     * @param sampleModel A sample model for the full image.
+     * @param premultiplied Whether the image's alpha is premultiplied.
+     * @param columns The number of tiles across the image.
+     * @param tiles The data elements of each tile, in row-major order.
+     * @throws IOException If the file could not be written.
+     */
+    SpilledImage(ColorModel colorModel, SampleModel sampleModel, boolean premultiplied, int columns, Object[] tiles) throws IOException {
+        this.colorModel = colorModel;
+        this.sampleModel = sampleModel;
+        this.premultiplied = premultiplied;
+        this.columns = columns;
+        this.count = tiles.length;
+        long total = 0;
+        for (Object data : tiles) {
+            total += TiledImage.sizeOf(data);
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Image is too large to map into memory");
+        }
+        this.bytes = total;
+        this.file = File.createTempFile("snapshot", ".tiles", getDirectory());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid once the channel is closed
+            this.mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            ByteBuffer buffer = mapping.duplicate().order(ByteOrder.nativeOrder());
+            for (Object data : tiles) {
+                if (data instanceof byte[]) {
+                    buffer.put((byte[]) data);
+                } else if (data instanceof short[]) {
+                    buffer.asShortBuffer().put((short[]) data);
+                } else if (data instanceof int[]) {
+                    buffer.asIntBuffer().put((int[]) data);
+                } else if (data instanceof float[]) {
+                    buffer.asFloatBuffer().put((float[]) data);
+                } else if (data instanceof double[]) {
+                    buffer.asDoubleBuffer().put((double[]) data);
+                }
+                if (!(data instanceof byte[])) {
+                    buffer.position(buffer.position() + (int) TiledImage.sizeOf(data));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            file.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * <p>
+     * Read the image back from its file as a new {@link BufferedImage}.
+     * </p>
+     *
+     * @return A copy of the spilled image.
+     * @throws IOException If the file has been deleted, or could not be read.
+     */
+    BufferedImage toBufferedImage() throws IOException {
+        MappedByteBuffer mapped = mapping;
+        if (mapped == null) {
+            throw new IOException("Spilled image has been deleted");
+        }
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, null);
+        int width = sampleModel.getWidth();
+        int height = sampleModel.getHeight();
+        int elements = sampleModel.getNumDataElements();
+        // Each read has its own position in the shared mapping
+        ByteBuffer buffer = mapped.duplicate().order(ByteOrder.nativeOrder());
+        for (int index = 0; index < count; index++) {
+            int x = (index % columns) * TiledImage.TILE_SIZE;
+            int y = (index / columns) * TiledImage.TILE_SIZE;
+            int tileWidth = Math.min(TiledImage.TILE_SIZE, width - x);
+            int tileHeight = Math.min(TiledImage.TILE_SIZE, height - y);
+            int length = tileWidth * tileHeight * elements;
+            Object data;
+            switch (sampleModel.getTransferType()) {
+                case DataBuffer.TYPE_BYTE:
+                    data = new byte[length];
+                    buffer.get((byte[]) data);
+                    break;
+                case DataBuffer.TYPE_SHORT:
+                case DataBuffer.TYPE_USHORT:
+                    data = new short[length];
+                    buffer.asShortBuffer().get((short[]) data);
+                    break;
+                case DataBuffer.TYPE_INT:
+                    data = new int[length];
+                    buffer.asIntBuffer().get((int[]) data);
+                    break;
+                case DataBuffer.TYPE_FLOAT:
+                    data = new float[length];
+                    buffer.asFloatBuffer().get((float[]) data);
+                    break;
+                case DataBuffer.TYPE_DOUBLE:
+                    data = new double[length];
+                    buffer.asDoubleBuffer().get((double[]) data);
+                    break;
+                default:
+                    throw new IOException("Unsupported transfer type");
+            }
+            if (!(data instanceof byte[])) {
+                buffer.position(buffer.position() + (int) TiledImage.sizeOf(data));
+            }
+            raster.setDataElements(x, y, tileWidth, tileHeight, data);
+        }
+        return new BufferedImage(colorModel, raster, premultiplied, null);
+    }
+
+    /**
+     * <p>
+     * Get the size of the image's file.
+     * </p>
+     *
+     * @return The number of bytes of disk space used.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * <p>
+     * Delete the image's file. The image cannot be read back afterwards.
+     * </p>
+     *
+     * <p>
+     * The mapping is let go, so that it can be garbage collected.
+     * </p>
+     */
+    void delete() {
+        mapping = null;
+        file.delete();
+    }
+
+    /**
+     * <p>
+     * Get the directory that spilled images are written to, creating it if necessary.
+     * </p>
+     *
+     * <p>
+     * The first call also deletes any directories left behind by earlier instances of ANDIE,
+     * and arranges for the new directory to be deleted when ANDIE exits.
+     * </p>
+     *
+     * @return The temporary directory.
+     * @throws IOException If the directory could not be created.
+     */
+    private static synchronized File getDirectory() throws IOException {
+        if (directory == null) {
+            deleteStaleDirectories();
+            File created = Files.createTempDirectory(DIRECTORY_PREFIX).toFile();
+            FileChannel channel = FileChannel.open(new File(created, LOCK_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.lock();
+            lockChannel = channel;
+            directory = created;
+            // A single hook for the whole directory, rather than one registration per file
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    lockChannel.close();
+                } catch (IOException ex) {
+                    // Delete what can be deleted anyway
+                }
+                deleteDirectory(created);
+            }));
+        }
+        return directory;
+    }
+
+    /**
+     * <p>
+     * Delete the directories of spilled images whose instance of ANDIE is no longer running.
+     * </p>
+     *
+     * <p>
+     * A directory is stale if the lock on its lock file can be taken. Directories whose lock 
+     * is held by another running instance are left alone.
+     * </p>
+     */
+    private static void deleteStaleDirectories() {
+        File[] candidates = new File(System.getProperty("java.io.tmpdir")).listFiles(
+            (parent, name) -> name.startsWith(DIRECTORY_PREFIX));
+        if (candidates == null) {
+            return;
+        }
+        for (File candidate : candidates) {
+            if (!candidate.isDirectory()) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(new File(candidate, LOCK_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    continue;
+                }
+                lock.release();
+            } catch (IOException | OverlappingFileLockException ex) {
+                continue;
+            }
+            deleteDirectory(candidate);
+        }
+    }
+
+    /**
+     * <p>
+     * Delete a directory of spilled images and the files in it.
+     * </p>
+     *
+     * @param dir The directory to delete.
+     */
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,286 @@
+package cosc202.andie;
+
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * <p>
+ * An immutable copy of an image, stored as a grid of tiles that can be shared between copies.
+ * </p>
+ *
+ * <p>
+ * Storing every state of an image's history as a full {@link BufferedImage} costs memory in
+ * proportion to the size of the image for every step, even when a step only changes a small
+ * part of it (such as a drawn shape). A TiledImage instead splits the raster into
+ * {@link #TILE_SIZE} by {@link #TILE_SIZE} tiles. When a TiledImage is made from an image with a
+ * previous TiledImage as its base, any tile whose contents are unchanged is shared with the base
+ * rather than copied, so the memory used by each further state is in proportion to the area
+ * that changed.
+ * </p>
+ *
+ * <p>
+ * Tiles are never written to once created - a changed tile is always a new copy - so sharing
+ * them is safe. Each tile keeps a reference count, maintained by the owner of the TiledImages
+ * through {@link #retain} and {@link #release}, so the owner can tell how much memory is actually
+ * freed when a TiledImage is dropped.
+ * </p>
+ *
+ * <p>
+ * Tiles hold the raster's own data elements, so an image of any type is restored exactly.
+ * </p>
+ *
+ * <p>
+ * <a href="https://creativecommons.org/licenses/by-nc-sa/4.0/">CC BY-NC-SA 4.0</a>
+ * </p>
+ *
+ * @version 1.0
+ */
+class TiledImage {
+
+    /** The width and height of a tile in pixels. */
+    static final int TILE_SIZE = 256;
+
+    /**
+     * <p>
+     * A block of raster data shared between TiledImages.
+     * </p>
+     */
+    static class Tile {
+
+        /** The raster's data elements for this tile, as a primitive array. */
+        private final Object data;
+        /** The size of the data in bytes. */
+        private final long bytes;
+        /** The number of retained TiledImages that use this tile. */
+        private int refCount;
+
+        /**
+         * <p>
+         * Create a tile holding the given data elements.
+         * </p>
+         *
+         * @param data The data elements, as returned by {@link Raster#getDataElements(int, int, int, int, Object)}.
+         */
+        Tile(Object data) {
+            this.data = data;
+            this.bytes = sizeOf(data);
+            this.refCount = 0;
+        }
+    }
+
+    /** The colour model of the image. */
+    private final ColorModel colorModel;
+    /** A sample model for the full image, used to rebuild it. */
+    private final SampleModel sampleModel;
+    /** Whether the image's alpha is premultiplied. */
+    private final boolean premultiplied;
+    /** The size of the image. */
+    private final int width, height;
+    /** The number of tiles across the image. */
+    private final int columns;
+    /** The tiles, in row-major order. */
+    private final Tile[] tiles;
+
+    /**
+     * <p>
+     * Make a tiled copy of an image.
+     * </p>
+     *
+     * <p>
+     * If a base is given and is compatible with the image (the same size and pixel layout),
+     * each tile with the same contents as the base's is shared rather than copied.
+     * If the caller also knows which region of the image differs from the base, tiles outside
+     * that region are shared without being read or compared at all.
+     * </p>
+     *
+     * @param image The image to copy.
+     * @param base A previous TiledImage to share tiles with, or null.
+     * @param changed The only region in which the image may differ from the base, or null if unknown.
+     */
+    TiledImage(BufferedImage image, TiledImage base, Rectangle changed) {
+        this.colorModel = image.getColorModel();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.sampleModel = image.getSampleModel().createCompatibleSampleModel(width, height);
+        this.premultiplied = image.isAlphaPremultiplied();
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new Tile[columns * rows];
+
+        if (base != null && !base.isCompatible(image)) {
+            base = null;
+        }
+        Raster raster = image.getRaster();
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int x = column * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                int index = row * columns + column;
+                if (base != null && changed != null && !changed.intersects(x, y, TILE_SIZE, TILE_SIZE)) {
+                    tiles[index] = base.tiles[index];
+                    continue;
+                }
+                Object data = raster.getDataElements(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y), null);
+                if (base != null && sameData(base.tiles[index].data, data)) {
+                    tiles[index] = base.tiles[index];
+                } else {
+                    tiles[index] = new Tile(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Check whether tiles of this image line up with, and hold the same kind of data as, another image.
+     * </p>
+     *
+     * @param image The image to compare with.
+     * @return True if tiles could be shared between the two.
+     */
+    private boolean isCompatible(BufferedImage image) {
+        return image.getWidth() == width && image.getHeight() == height
+                && image.isAlphaPremultiplied() == premultiplied
+                && image.getColorModel().equals(colorModel)
+                && image.getSampleModel().getTransferType() == sampleModel.getTransferType()
+                && image.getSampleModel().getNumDataElements() == sampleModel.getNumDataElements();
+    }
+
+    /**
+     * <p>
+     * Rebuild the image as a new {@link BufferedImage}.
+     * </p>
+     *
+     * <p>
+     * The result is an independent copy, so it may be freely altered.
+     * </p>
+     *
+     * @return A copy of the stored image.
+     */
+    BufferedImage toBufferedImage() {
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, null);
+        for (int index = 0; index < tiles.length; index++) {
+            int x = (index % columns) * TILE_SIZE;
+            int y = (index / columns) * TILE_SIZE;
+            raster.setDataElements(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y), tiles[index].data);
+        }
+        return new BufferedImage(colorModel, raster, premultiplied, null);
+    }
+
+    /**
+     * <p>
+     * Write a copy of the image to a temporary file.
+     * </p>
+     *
+     * @return The spilled copy, which can be read back later.
+     * @throws IOException If the file could not be written.
+     */
+    SpilledImage spill() throws IOException {
+        Object[] data = new Object[tiles.length];
+        for (int index = 0; index < tiles.length; index++) {
+            data[index] = tiles[index].data;
+        }
+        return new SpilledImage(colorModel, sampleModel, premultiplied, columns, data);
+    }
+
+    /**
+     * <p>
+     * Add a reference to each of this image's tiles.
+     * </p>
+     *
+     * @return The number of bytes in tiles that were not referenced before.
+     */
+    long retain() {
+        long added = 0;
+        for (Tile tile : tiles) {
+            if (tile.refCount++ == 0) {
+                added += tile.bytes;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * <p>
+     * Remove a reference from each of this image's tiles.
+     * </p>
+     *
+     * @return The number of bytes in tiles that are no longer referenced.
+     */
+    long release() {
+        long freed = 0;
+        for (Tile tile : tiles) {
+            if (--tile.refCount == 0) {
+                freed += tile.bytes;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * <p>
+     * Get the number of bytes this image would add if it were retained.
+     * </p>
+     *
+     * @return The size of the tiles that are not yet referenced.
+     */
+    long unreferencedBytes() {
+        long bytes = 0;
+        for (Tile tile : tiles) {
+            if (tile.refCount == 0) {
+                bytes += tile.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * <p>
+     * Get the size of a primitive array of data elements.
+     * </p>
+     *
+     * @param data The array.
+     * @return Its size in bytes.
+     */
+    static long sizeOf(Object data) {
+        if (data instanceof byte[]) {
+            return ((byte[]) data).length;
+        } else if (data instanceof short[]) {
+            return 2L * ((short[]) data).length;
+        } else if (data instanceof int[]) {
+            return 4L * ((int[]) data).length;
+        } else if (data instanceof float[]) {
+            return 4L * ((float[]) data).length;
+        } else if (data instanceof double[]) {
+            return 8L * ((double[]) data).length;
+        }
+        return 0;
+    }
+
+    /**
+     * <p>
+     * Compare two primitive arrays of data elements.
+     * </p>
+     *
+     * @param a The first array.
+     * @param b The second array.
+     * @return True if they are arrays of the same type with the same contents.
+     */
+    private static boolean sameData(Object a, Object b) {
+        if (a instanceof int[] && b instanceof int[]) {
+            return Arrays.equals((int[]) a, (int[]) b);
+        } else if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        } else if (a instanceof short[] && b instanceof short[]) {
+            return Arrays.equals((short[]) a, (short[]) b);
+        } else if (a instanceof float[] && b instanceof float[]) {
+            return Arrays.equals((float[]) a, (float[]) b);
+        } else if (a instanceof double[] && b instanceof double[]) {
+            return Arrays.equals((double[]) a, (double[]) b);
+        }
+        return false;
+    }
+
+}
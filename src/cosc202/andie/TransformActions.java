@@ -109,9 +109,7 @@ public class TransformActions implements KeyListener {
                 resizeFactor = radiusModel.getNumber().intValue();
             }
             
-            target.getImage().apply(new ResizeImage(resizeFactor));
-            target.repaint();
-            target.getParent().revalidate();
+            target.applyInBackground(new ResizeImage(resizeFactor));
         }
     }
 
@@ -0,0 +1,121 @@
+package test.cosc202.andie;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import cosc202.andie.*;
+
+public class BatchProcessorTest {
+
+    private static BufferedImage testingImage;
+
+    //Initializes our testing image
+    @BeforeAll
+    static void getImage(){
+        try{
+            testingImage = ImageIO.read(BatchProcessorTest.class.getResourceAsStream("clocktower.jpg"));
+        }catch (IOException e){
+            System.out.println("Failed to find image");
+            fail();
+        }
+    }
+
+    //Tests that every image in the input directory is written with the macro applied, and that other files are skipped
+    @Test
+    void batchTest(@TempDir Path dir) throws Exception{
+        Path input = Files.createDirectories(dir.resolve("in"));
+        Path output = dir.resolve("out");
+        for (int i = 0; i < 5; i++) {
+            ImageIO.write(testingImage, "png", input.resolve("image" + i + ".png").toFile());
+        }
+        Files.writeString(input.resolve("notes.txt"), "not an image");
+        File macro = dir.resolve("edit_macro.ops").toFile();
+        List<ImageOperation> ops = List.of(new ConvertToGrey(), new FlipImage(true), new MeanFilter(1));
+        try (OutputStream out = new FileOutputStream(macro)) {
+            OperationCodec.write(out, ops);
+        }
+
+        BatchProcessor.Result result = new BatchProcessor(macro, input.toFile(), output.toFile(), 2).run();
+        Assertions.assertEquals(5, result.getProcessed());
+        Assertions.assertEquals(0, result.getFailed());
+        Assertions.assertFalse(Files.exists(output.resolve("notes.txt")));
+
+        BufferedImage expected = new BufferedImage(testingImage.getColorModel(), testingImage.copyData(null), testingImage.isAlphaPremultiplied(), null);
+        for (ImageOperation op : ops) {
+            expected = op.apply(expected);
+        }
+        for (int i = 0; i < 5; i++) {
+            BufferedImage actual = ImageIO.read(output.resolve("image" + i + ".png").toFile());
+            Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+            Assertions.assertEquals(expected.getHeight(), actual.getHeight());
+            for (int y = 0; y < actual.getHeight(); y++) {
+                for (int x = 0; x < actual.getWidth(); x++) {
+                    Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    //Tests that an image that cannot be read is reported without stopping the rest of the batch
+    @Test
+    void failureTest(@TempDir Path dir) throws Exception{
+        Path input = Files.createDirectories(dir.resolve("in"));
+        ImageIO.write(testingImage, "png", input.resolve("good.png").toFile());
+        Files.writeString(input.resolve("broken.png"), "not really a png");
+        File macro = dir.resolve("edit_macro.ops").toFile();
+        try (OutputStream out = new FileOutputStream(macro)) {
+            OperationCodec.write(out, List.of(new ConvertToGrey()));
+        }
+
+        BatchProcessor.Result result = new BatchProcessor(macro, input.toFile(), dir.resolve("out").toFile(), 1).run();
+        Assertions.assertEquals(1, result.getProcessed());
+        Assertions.assertEquals(1, result.getFailed());
+        Assertions.assertTrue(Files.exists(dir.resolve("out").resolve("good.png")));
+    }
+
+    //Tests that images of any type are worked on with the same pixels getRGB gives, and written back in their own format
+    @Test
+    void formatTest(@TempDir Path dir) throws Exception{
+        Path input = Files.createDirectories(dir.resolve("in"));
+        Path output = dir.resolve("out");
+        BufferedImage grey = new BufferedImage(testingImage.getWidth(), testingImage.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        grey.getGraphics().drawImage(testingImage, 0, 0, null);
+        ImageIO.write(grey, "png", input.resolve("grey.png").toFile());
+        ImageIO.write(testingImage, "jpg", input.resolve("colour.jpg").toFile());
+        File macro = dir.resolve("edit_macro.ops").toFile();
+        List<ImageOperation> ops = List.of(new BrightnessAdjuster(20), new RotateImage(90));
+        try (OutputStream out = new FileOutputStream(macro)) {
+            OperationCodec.write(out, ops);
+        }
+
+        BatchProcessor.Result result = new BatchProcessor(macro, input.toFile(), output.toFile(), 1).run();
+        Assertions.assertEquals(2, result.getProcessed());
+
+        BufferedImage expected = new BufferedImage(grey.getWidth(), grey.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        expected.setRGB(0, 0, grey.getWidth(), grey.getHeight(), grey.getRGB(0, 0, grey.getWidth(), grey.getHeight(), null, 0, grey.getWidth()), 0, grey.getWidth());
+        for (ImageOperation op : ops) {
+            expected = op.apply(expected);
+        }
+        BufferedImage actual = ImageIO.read(output.resolve("grey.png").toFile());
+        Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+
+        BufferedImage colour = ImageIO.read(output.resolve("colour.jpg").toFile());
+        Assertions.assertNotNull(colour);
+        Assertions.assertEquals(testingImage.getHeight(), colour.getWidth());
+        Assertions.assertEquals(testingImage.getWidth(), colour.getHeight());
+    }
+
+}
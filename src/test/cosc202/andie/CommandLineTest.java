@@ -0,0 +1,94 @@
+package test.cosc202.andie;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import cosc202.andie.*;
+
+public class CommandLineTest {
+
+    private static BufferedImage testingImage;
+
+    //Initializes our testing image
+    @BeforeAll
+    static void getImage(){
+        try{
+            testingImage = ImageIO.read(CommandLineTest.class.getResourceAsStream("clocktower.jpg"));
+        }catch (IOException e){
+            System.out.println("Failed to find image");
+            fail();
+        }
+    }
+
+    /**
+     * Write operations to an operations file.
+     * @param file the file to write.
+     * @param ops the operations.
+     */
+    private static void writeOps(File file, List<ImageOperation> ops) throws IOException{
+        try (OutputStream out = new FileOutputStream(file)) {
+            OperationCodec.write(out, ops);
+        }
+    }
+
+    //Tests that the image written is the input with the operations applied
+    @Test
+    void successTest(@TempDir Path dir) throws Exception{
+        File input = dir.resolve("in.png").toFile();
+        File output = dir.resolve("out.png").toFile();
+        File opsFile = dir.resolve("edit.ops").toFile();
+        ImageIO.write(testingImage, "png", input);
+        List<ImageOperation> ops = List.of(new ConvertToGrey(), new RotateImage(-90), new MeanFilter(2));
+        writeOps(opsFile, ops);
+
+        int status = CommandLine.run(new String[] {CommandLine.OPS_OPTION, opsFile.getPath(), input.getPath(), output.getPath()});
+        Assertions.assertEquals(CommandLine.SUCCESS, status);
+
+        BufferedImage read = ImageIO.read(input);
+        BufferedImage expected = new BufferedImage(read.getWidth(), read.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        expected.setRGB(0, 0, read.getWidth(), read.getHeight(), read.getRGB(0, 0, read.getWidth(), read.getHeight(), null, 0, read.getWidth()), 0, read.getWidth());
+        expected = OperationPipeline.apply(expected, ops);
+        BufferedImage actual = ImageIO.read(output);
+        Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+        Assertions.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    //Tests that missing or unreadable files fail without writing anything
+    @Test
+    void failureTest(@TempDir Path dir) throws Exception{
+        File input = dir.resolve("in.png").toFile();
+        File output = dir.resolve("out.png").toFile();
+        File opsFile = dir.resolve("edit.ops").toFile();
+        writeOps(opsFile, List.of(new ConvertToGrey()));
+
+        Assertions.assertEquals(CommandLine.FAILURE, CommandLine.run(new String[] {CommandLine.OPS_OPTION, opsFile.getPath(), input.getPath(), output.getPath()}));
+        Files.writeString(input.toPath(), "not really a png");
+        Assertions.assertEquals(CommandLine.FAILURE, CommandLine.run(new String[] {CommandLine.OPS_OPTION, opsFile.getPath(), input.getPath(), output.getPath()}));
+        ImageIO.write(testingImage, "png", input);
+        Files.writeString(opsFile.toPath(), "not really operations");
+        Assertions.assertEquals(CommandLine.FAILURE, CommandLine.run(new String[] {CommandLine.OPS_OPTION, opsFile.getPath(), input.getPath(), output.getPath()}));
+        Assertions.assertFalse(output.exists());
+    }
+
+    //Tests that the wrong arguments are reported as a usage error
+    @Test
+    void usageTest(){
+        Assertions.assertEquals(CommandLine.USAGE, CommandLine.run(new String[] {}));
+        Assertions.assertEquals(CommandLine.USAGE, CommandLine.run(new String[] {CommandLine.OPS_OPTION, "edit.ops", "in.jpg"}));
+        Assertions.assertEquals(CommandLine.USAGE, CommandLine.run(new String[] {"--other", "edit.ops", "in.jpg", "out.png"}));
+    }
+
+}
@@ -0,0 +1,462 @@
+package test.cosc202.andie;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import cosc202.andie.*;
+
+public class EditableImageTest {
+
+    private static BufferedImage testingImage;
+
+    //Initializes our testing image
+    @BeforeAll
+    static void getImage(){
+        // Keep the tests' rendered images out of the user's own render cache
+        System.setProperty("andie.renderCacheMB", "0");
+        try{
+            testingImage = ImageIO.read(EditableImageTest.class.getResourceAsStream("clocktower.jpg"));
+        }catch (IOException e){
+            System.out.println("Failed to find image");
+            fail();
+        }
+    }
+
+    /**
+     * Write the testing image to a file, ready to be opened.
+     * @param dir the directory to write it in.
+     * @return the path of the file.
+     */
+    private static String writeImage(Path dir) throws IOException{
+        File file = dir.resolve("image.png").toFile();
+        ImageIO.write(testingImage, "png", file);
+        return file.getPath();
+    }
+
+    /**
+     * Apply operations to the image in a file, as an EditableImage should.
+     * @param path the image file.
+     * @param ops the operations to apply.
+     * @return the result.
+     */
+    private static BufferedImage expected(String path, List<ImageOperation> ops) throws IOException{
+        BufferedImage read = ImageIO.read(new File(path));
+        BufferedImage image = new BufferedImage(read.getWidth(), read.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, read.getWidth(), read.getHeight(), read.getRGB(0, 0, read.getWidth(), read.getHeight(), null, 0, read.getWidth()), 0, read.getWidth());
+        return OperationPipeline.apply(image, ops);
+    }
+
+    /**
+     * Check that two images have exactly the same pixels.
+     * @param expected the expected image.
+     * @param actual the actual image.
+     */
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual){
+        Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+        Assertions.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Open an image, apply operations without saving them, and return the journal they were recorded in.
+     * @param path the image file.
+     * @param ops the operations to apply.
+     * @return the journal file.
+     */
+    private static File journalOf(String path, List<ImageOperation> ops) throws Exception{
+        EditableImage image = new EditableImage();
+        image.open(path);
+        for (ImageOperation op : ops) {
+            image.apply(op);
+        }
+        File journal = new File(path + ".ops.journal");
+        Assertions.assertTrue(journal.exists());
+        return journal;
+    }
+
+    //Tests that changes whose last journal entry was cut short are recovered, except for that entry
+    @Test
+    void journalTruncatedTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new FlipImage(true), new RotateImage(90), new MeanFilter(1));
+        File journal = journalOf(path, ops);
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        Files.write(journal.toPath(), Arrays.copyOf(bytes, bytes.length - 2));
+
+        EditableImage image = new EditableImage();
+        image.open(path);
+        assertSameImage(expected(path, ops.subList(0, 2)), image.getCurrentImage());
+        Assertions.assertEquals(2, OperationCodec.load(new FileInputStream(path + ".ops")).size());
+        Assertions.assertFalse(journal.exists());
+    }
+
+    //Tests that changes are recovered from a journal followed by zeros or other data that cannot be read
+    @Test
+    void journalCorruptTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new FlipImage(true), new RotateImage(90), new MeanFilter(1));
+        File journal = journalOf(path, ops);
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        Files.write(journal.toPath(), Arrays.copyOf(bytes, bytes.length + 512));
+
+        EditableImage image = new EditableImage();
+        image.open(path);
+        assertSameImage(expected(path, ops), image.getCurrentImage());
+
+        // An entry that claims an impossible length
+        journal = journalOf(path, List.of(new ConvertToGrey()));
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true))) {
+            out.writeByte('A');
+            out.writeUTF("mean");
+            out.writeInt(-1);
+        }
+        image = new EditableImage();
+        image.open(path);
+        List<ImageOperation> recovered = new ArrayList<ImageOperation>(ops);
+        recovered.add(new ConvertToGrey());
+        assertSameImage(expected(path, recovered), image.getCurrentImage());
+        Assertions.assertEquals(4, OperationCodec.load(new FileInputStream(path + ".ops")).size());
+    }
+
+    //Tests that a damaged entry in the middle of a journal leaves the journal and the saved operations as they were
+    @Test
+    void journalDamagedTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        File journal = journalOf(path, List.of(new FlipImage(true)));
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true))) {
+            //A mean filter's radius is an int, four bytes
+            out.writeByte('A');
+            out.writeUTF("mean");
+            out.writeInt(2);
+            out.writeShort(1);
+            out.writeByte('A');
+            OperationCodec.writeRecord(out, new RotateImage(90));
+        }
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+
+        EditableImage image = new EditableImage();
+        image.open(path);
+        Assertions.assertArrayEquals(bytes, Files.readAllBytes(journal.toPath()));
+        Assertions.assertFalse(new File(path + ".ops").exists());
+    }
+
+    //Tests that saving a stack that was simplified leaves no journal, until something changes after the save
+    @Test
+    void journalAfterSimplifiedSaveTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new FlipImage(true), new FlipImage(true), new MeanFilter(1));
+        File journal = journalOf(path, ops);
+        EditableImage image = new EditableImage();
+        image.open(path);
+        image.save();
+        Assertions.assertEquals(1, OperationCodec.load(new FileInputStream(path + ".ops")).size());
+        Assertions.assertFalse(journal.exists());
+
+        // The saved stack is reopened as it was saved
+        image = new EditableImage();
+        image.open(path);
+        Assertions.assertEquals(1, OperationCodec.load(new FileInputStream(path + ".ops")).size());
+
+        // Changes after saving the simplified stack still replay on top of the stack in memory
+        EditableImage edited = new EditableImage();
+        edited.open(path);
+        edited.apply(new FlipImage(true));
+        edited.apply(new FlipImage(true));
+        edited.save();
+        Assertions.assertFalse(journal.exists());
+        edited.undo();
+        Assertions.assertTrue(journal.exists());
+        image = new EditableImage();
+        image.open(path);
+        assertSameImage(expected(path, List.of(new MeanFilter(1), new FlipImage(true))), image.getCurrentImage());
+    }
+
+    //Tests that every state reached by undoing is the same whether it is replayed from a keyframe or from the original
+    @Test
+    void keyframeTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new MeanFilter(1), new BrightnessAdjuster(20), new FlipImage(false),
+            new ConvertToGrey(), new MeanFilter(2), new RotateImage(180), new BrightnessAdjuster(-10));
+        System.setProperty("andie.keyframeInterval", "2");
+        try {
+            EditableImage keyframed = new EditableImage();
+            keyframed.open(path);
+            EditableImage replayed = new EditableImage();
+            replayed.open(path);
+            replayed.setSnapshotBudget(0);
+            for (ImageOperation op : ops) {
+                keyframed.apply(op);
+                replayed.apply(op);
+                // Render as each operation is applied, as the window does, so that keyframes are taken
+                keyframed.getCurrentImage();
+                replayed.getCurrentImage();
+            }
+            assertSameImage(expected(path, ops), keyframed.getCurrentImage());
+            for (int depth = ops.size() - 1; depth >= 0; depth--) {
+                keyframed.undo();
+                replayed.undo();
+                BufferedImage expected = expected(path, ops.subList(0, depth));
+                assertSameImage(expected, keyframed.getCurrentImage());
+                assertSameImage(expected, replayed.getCurrentImage());
+            }
+        } finally {
+            System.clearProperty("andie.keyframeInterval");
+        }
+    }
+
+    //Tests that undoing flips and rotations by their inverses, and redoing from the cache, give the images they should
+    @Test
+    void undoRedoTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new MeanFilter(1), new FlipImage(true), new RotateImage(90), new ConvertToGrey());
+        EditableImage image = new EditableImage();
+        image.open(path);
+        for (ImageOperation op : ops) {
+            image.apply(op);
+        }
+        assertSameImage(expected(path, ops), image.getCurrentImage());
+        for (int depth = ops.size() - 1; depth >= 1; depth--) {
+            image.undo();
+            // Flips and rotations are undone by applying their inverse, the rest by replaying
+            Assertions.assertEquals(ops.get(depth).inverse() == null, image.hasPending());
+            assertSameImage(expected(path, ops.subList(0, depth)), image.getCurrentImage());
+        }
+        for (int depth = 2; depth <= ops.size(); depth++) {
+            image.redo();
+            // Restored from the cache rather than rendered again
+            Assertions.assertFalse(image.hasPending());
+            assertSameImage(expected(path, ops.subList(0, depth)), image.getCurrentImage());
+        }
+
+        // With no room to keep undone images, redoing renders the operation again
+        image.discardJournal();
+        System.setProperty("andie.redoBudgetMB", "0");
+        try {
+            image = new EditableImage();
+            image.open(path);
+            for (ImageOperation op : ops) {
+                image.apply(op);
+            }
+            image.getCurrentImage();
+            image.undo();
+            image.undo();
+            image.redo();
+            Assertions.assertTrue(image.hasPending());
+            assertSameImage(expected(path, ops.subList(0, 3)), image.getCurrentImage());
+        } finally {
+            System.clearProperty("andie.redoBudgetMB");
+        }
+    }
+
+    //Tests that keyframes sharing unchanged tiles with earlier ones are not changed by shapes later drawn in place
+    @Test
+    void tileSharingTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new MeanFilter(1),
+            new DrawRectangle(10, 10, 200, 100, Color.RED, 3, false),
+            new DrawOval(300, 400, 150, 150, Color.BLUE, 1, true),
+            new DrawRectangle(50, 60, 700, 900, new Color(0, 255, 0, 128), 1, true),
+            new DrawRectangle(0, 0, 20, 20, Color.BLACK, 10, true));
+        System.setProperty("andie.keyframeInterval", "1");
+        try {
+            EditableImage image = new EditableImage();
+            image.open(path);
+            for (ImageOperation op : ops) {
+                image.apply(op);
+                image.getCurrentImage();
+            }
+            assertSameImage(expected(path, ops), image.getCurrentImage());
+            for (int depth = ops.size() - 1; depth >= 0; depth--) {
+                image.undo();
+                assertSameImage(expected(path, ops.subList(0, depth)), image.getCurrentImage());
+            }
+            // Drawing again from a keyframe must not reach back into it
+            image.redo();
+            image.apply(new DrawRectangle(0, 0, 400, 400, Color.WHITE, 1, true));
+            image.getCurrentImage();
+            image.undo();
+            assertSameImage(expected(path, ops.subList(0, 1)), image.getCurrentImage());
+        } finally {
+            System.clearProperty("andie.keyframeInterval");
+        }
+    }
+
+    //Tests that operations are not rendered until the image is needed, but their result size is known straight away
+    @Test
+    void deferredTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new RotateImage(90), new ResizeImage(50), new Cropper(10, 20, 300, 200), new MeanFilter(1));
+        EditableImage image = new EditableImage();
+        image.open(path);
+        BufferedImage opened = image.getRenderedImage();
+        for (ImageOperation op : ops) {
+            image.apply(op);
+        }
+        Assertions.assertTrue(image.hasPending());
+        Assertions.assertTrue(image.hasGlobalPending());
+        Assertions.assertSame(opened, image.getRenderedImage());
+        Assertions.assertEquals(new Dimension(300, 200), image.getImageSize());
+
+        BufferedImage expected = expected(path, ops);
+        assertSameImage(expected, image.getCurrentImage());
+        Assertions.assertFalse(image.hasPending());
+        Assertions.assertSame(image.getCurrentImage(), image.getRenderedImage());
+        Assertions.assertEquals(new Dimension(expected.getWidth(), expected.getHeight()), image.getImageSize());
+
+        // Shapes drawn in place are pending, but do not change the whole image
+        image.apply(new DrawOval(5, 5, 50, 50, Color.RED, 2, false));
+        Assertions.assertTrue(image.hasPending());
+        Assertions.assertFalse(image.hasGlobalPending());
+    }
+
+    //Tests that the image counts as saved when it was just opened or saved, or undone back to that point
+    @Test
+    void saveStatusTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        EditableImage image = new EditableImage();
+        image.open(path);
+        Assertions.assertTrue(image.getSaveStatus());
+        image.apply(new FlipImage(true));
+        Assertions.assertFalse(image.getSaveStatus());
+        image.undo();
+        Assertions.assertTrue(image.getSaveStatus());
+        image.redo();
+        image.apply(new MeanFilter(1));
+        image.save();
+        Assertions.assertTrue(image.getSaveStatus());
+        image.apply(new ConvertToGrey());
+        Assertions.assertFalse(image.getSaveStatus());
+        image.undo();
+        Assertions.assertTrue(image.getSaveStatus());
+        image.undo();
+        Assertions.assertFalse(image.getSaveStatus());
+        image.redo();
+        Assertions.assertTrue(image.getSaveStatus());
+        // A different change from the saved state is not saved, even at the same depth
+        image.undo();
+        image.apply(new MeanFilter(1));
+        Assertions.assertFalse(image.getSaveStatus());
+
+        image = new EditableImage();
+        image.open(path);
+        Assertions.assertTrue(image.getSaveStatus());
+        Assertions.assertFalse(new File(path + ".ops.journal").exists());
+    }
+
+    //Tests that saving to a file of the same type copies the original image's bytes, and the copy reopens with its operations
+    @Test
+    void saveAsTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new ConvertToGrey(), new RotateImage(-90), new MeanFilter(1));
+        EditableImage image = new EditableImage();
+        image.open(path);
+        for (ImageOperation op : ops) {
+            image.apply(op);
+        }
+        String copy = dir.resolve("copy.png").toString();
+        image.saveAs(copy);
+        Assertions.assertArrayEquals(Files.readAllBytes(Paths.get(path)), Files.readAllBytes(Paths.get(copy)));
+        Assertions.assertEquals(ops.size(), OperationCodec.load(new FileInputStream(copy + ".ops")).size());
+
+        EditableImage reopened = new EditableImage();
+        reopened.open(copy);
+        assertSameImage(expected(path, ops), reopened.getCurrentImage());
+
+        // A different type is encoded again, with the same pixels
+        String other = dir.resolve("copy.bmp").toString();
+        reopened.saveAs(other);
+        assertSameImage(ImageIO.read(new File(path)), ImageIO.read(new File(other)));
+    }
+
+    //Tests that reopening a saved image starts from its rendered result in the render cache
+    @Test
+    void renderCacheTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        List<ImageOperation> ops = List.of(new MeanFilter(2), new FlipImage(false), new ConvertToGrey());
+        System.setProperty("andie.renderCacheMB", "64");
+        System.setProperty("andie.renderCacheDir", dir.resolve("cache").toString());
+        try {
+            EditableImage image = new EditableImage();
+            image.open(path);
+            for (ImageOperation op : ops) {
+                image.apply(op);
+            }
+            image.getCurrentImage();
+            image.save();
+
+            EditableImage reopened = new EditableImage();
+            reopened.open(path);
+            Assertions.assertFalse(reopened.hasPending());
+            assertSameImage(expected(path, ops), reopened.getRenderedImage());
+            reopened.undo();
+            assertSameImage(expected(path, ops.subList(0, 2)), reopened.getCurrentImage());
+
+            // A run of flips and rotations is saved simplified, and reopens from the cache all the same
+            List<ImageOperation> run = List.of(new FlipImage(true), new FlipImage(true), new RotateImage(90), new MeanFilter(1));
+            Files.delete(Paths.get(path + ".ops"));
+            image = new EditableImage();
+            image.open(path);
+            for (ImageOperation op : run) {
+                image.apply(op);
+            }
+            image.getCurrentImage();
+            image.save();
+            Assertions.assertEquals(2, OperationCodec.load(new FileInputStream(path + ".ops")).size());
+            reopened = new EditableImage();
+            reopened.open(path);
+            Assertions.assertFalse(reopened.hasPending());
+            assertSameImage(expected(path, run), reopened.getRenderedImage());
+        } finally {
+            System.setProperty("andie.renderCacheMB", "0");
+            System.clearProperty("andie.renderCacheDir");
+        }
+        // Without the cache, the operations are pending until rendered
+        EditableImage uncached = new EditableImage();
+        uncached.open(path);
+        Assertions.assertTrue(uncached.hasPending());
+    }
+
+    //Tests that switching between variants of the last operation gives each variant's image in turn
+    @Test
+    void variantTest(@TempDir Path dir) throws Exception{
+        String path = writeImage(dir);
+        ImageOperation base = new MeanFilter(1);
+        List<ImageOperation> variants = List.of(new FlipImage(true), new ConvertToGrey(), new RotateImage(180));
+        EditableImage image = new EditableImage();
+        image.open(path);
+        image.apply(base);
+        Assertions.assertFalse(image.nextVariant());
+        for (ImageOperation variant : variants) {
+            image.apply(variant);
+            image.getCurrentImage();
+            if (variant != variants.get(variants.size() - 1)) {
+                image.undo();
+            }
+        }
+        Assertions.assertEquals(variants.size(), image.getVariantCount());
+        // From the last variant, cycling back to the first
+        for (int i = 0; i < 2 * variants.size(); i++) {
+            Assertions.assertTrue(image.nextVariant());
+            ImageOperation variant = variants.get(i % variants.size());
+            assertSameImage(expected(path, List.of(base, variant)), image.getCurrentImage());
+        }
+        image.undo();
+        Assertions.assertEquals(1, image.getVariantCount());
+        assertSameImage(expected(path, List.of(base)), image.getCurrentImage());
+    }
+
+}
@@ -84,4 +84,17 @@ public class FlipImageTest {
             fail();
         }
     }
+
+    //Tests that applying the inverse of a flip restores the original image
+    @Test
+    void inverseTest(){
+        BufferedImage flipped = testVerticalFilter.apply(testingImage);
+        BufferedImage restored = testVerticalFilter.inverse().apply(flipped);
+
+        int randomXCoord = randomInRange(testingImage.getWidth());
+        int randomYCoord = randomInRange(testingImage.getHeight());
+
+        Assertions.assertEquals(testingImage.getRGB(randomXCoord, randomYCoord), restored.getRGB(randomXCoord, randomYCoord));
+        Assertions.assertEquals(testingImage.getRGB(0, 0), restored.getRGB(0, 0));
+    }
 }
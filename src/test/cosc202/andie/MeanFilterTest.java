@@ -63,4 +63,102 @@ public class MeanFilterTest {
         }
     }  
 
+    //Tests that an image of a single colour is left unchanged, even where the neighbourhood reaches past the edges
+    @Test
+    void constantTest(){
+        BufferedImage image = new BufferedImage(23, 17, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0x80336699);
+            }
+        }
+        //Radius 30 reaches past every edge of the image
+        for (int radius : new int[] {1, 2, 5, 30}) {
+            BufferedImage filtered = new MeanFilter(radius).apply(image);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    Assertions.assertEquals(0x80336699, filtered.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the offsets in a neighbourhood that land on a coordinate, once clamped to the image.
+     * @param position the coordinate of the neighbourhood's centre.
+     * @param target the coordinate to land on.
+     * @param radius the radius of the neighbourhood.
+     * @param size the width or height of the image.
+     * @return the number of offsets that land on target.
+     */
+    private static int hits(int position, int target, int radius, int size){
+        int hits = 0;
+        for (int offset = -radius; offset <= radius; offset++) {
+            if (Math.min(Math.max(position + offset, 0), size - 1) == target) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    //Tests that a single bright pixel spreads evenly over its neighbourhood and no further, counting
+    //it once for each neighbour clamped onto it where the neighbourhood reaches past an edge
+    @Test
+    void spreadTest(){
+        //The middle, a corner and an edge
+        int[][] brights = {{11, 8}, {0, 0}, {22, 8}};
+        for (int[] bright : brights) {
+            BufferedImage image = new BufferedImage(23, 17, BufferedImage.TYPE_INT_ARGB);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, 0xFF000000);
+                }
+            }
+            image.setRGB(bright[0], bright[1], 0xFFFF0000);
+            for (int radius : new int[] {1, 2, 3}) {
+                BufferedImage filtered = new MeanFilter(radius).apply(image);
+                int size = (2*radius+1) * (2*radius+1);
+                int spread = 0;
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        int weight = hits(x, bright[0], radius, image.getWidth()) * hits(y, bright[1], radius, image.getHeight());
+                        int red = (2*255*weight + size) / (2*size);
+                        Assertions.assertEquals(0xFF000000 | red << 16, filtered.getRGB(x, y));
+                        if (red > 0) {
+                            spread++;
+                        }
+                    }
+                }
+                int across = Math.min(bright[0], radius) + Math.min(image.getWidth() - 1 - bright[0], radius) + 1;
+                int down = Math.min(bright[1], radius) + Math.min(image.getHeight() - 1 - bright[1], radius) + 1;
+                Assertions.assertEquals(across * down, spread);
+                if (bright[0] == 11) {
+                    Assertions.assertEquals(size, spread);
+                }
+            }
+        }
+    }
+
+    //Tests that colours are weighted by alpha, so a transparent pixel's colour does not bleed into its neighbours
+    @Test
+    void transparentTest(){
+        BufferedImage image = new BufferedImage(5, 5, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0xFFFF0000);
+            }
+        }
+        image.setRGB(2, 2, 0x0000FF00);
+        BufferedImage filtered = new MeanFilter(1).apply(image);
+        //Eight opaque neighbours of nine give an alpha of 8 * 255 / 9, rounded
+        Assertions.assertEquals(0xE3FF0000, filtered.getRGB(2, 2));
+        Assertions.assertEquals(0xE3FF0000, filtered.getRGB(1, 1));
+        Assertions.assertEquals(0xFFFF0000, filtered.getRGB(0, 0));
+
+        //Where every neighbour is transparent, so is the result, with no colour
+        BufferedImage clear = new BufferedImage(3, 3, BufferedImage.TYPE_INT_ARGB);
+        clear.setRGB(1, 1, 0x00336699);
+        Assertions.assertEquals(0, new MeanFilter(1).apply(clear).getRGB(1, 1));
+    }
+
 }
@@ -102,4 +102,41 @@ public class MedianFilterTest {
         }
     }
 
+    //Tests that each channel of each pixel is the median of its neighbourhood, with neighbours outside the image
+    //replaced by the pixel in line with it, on a translucent image small enough for the edges to overlap
+    @Test
+    void neighbourhoodTest(){
+        Random random = new Random(202);
+        BufferedImage image = new BufferedImage(23, 17, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        //Radius 1 and 2 use sorting networks, and larger ones histograms
+        for (int radius : new int[] {1, 2, 3, 9}) {
+            BufferedImage filtered = new MedianFilter(radius).apply(image);
+            int size = (2*radius+1) * (2*radius+1);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int expected = 0;
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int[] values = new int[size];
+                        int count = 0;
+                        for (int j = -radius; j <= radius; j++) {
+                            for (int i = -radius; i <= radius; i++) {
+                                int xPos = (x + j < 0 || x + j >= image.getWidth()) ? x : x + j;
+                                int yPos = (y + i < 0 || y + i >= image.getHeight()) ? y : y + i;
+                                values[count++] = (image.getRGB(xPos, yPos) >>> shift) & 0xFF;
+                            }
+                        }
+                        java.util.Arrays.sort(values);
+                        expected |= values[size/2] << shift;
+                    }
+                    Assertions.assertEquals(expected, filtered.getRGB(x, y));
+                }
+            }
+        }
+    }
+
 }
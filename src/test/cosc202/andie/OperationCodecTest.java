@@ -0,0 +1,229 @@
+package test.cosc202.andie;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.util.*;
+
+import cosc202.andie.*;
+
+public class OperationCodecTest {
+
+    private static BufferedImage testingImage;
+
+    //Initializes our testing image
+    @BeforeAll
+    static void getImage(){
+        try{
+            testingImage = ImageIO.read(OperationCodecTest.class.getResourceAsStream("clocktower.jpg"));
+        }catch (IOException e){
+            System.out.println("Failed to find image");
+            fail();
+        }
+    }
+
+    /**
+     * An operation with no codec of its own, which has to be saved with serialisation.
+     */
+    static class Invert implements ImageOperation, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public BufferedImage apply(BufferedImage input) {
+            for (int y = 0; y < input.getHeight(); y++) {
+                for (int x = 0; x < input.getWidth(); x++) {
+                    input.setRGB(x, y, input.getRGB(x, y) ^ 0x00FFFFFF);
+                }
+            }
+            return input;
+        }
+    }
+
+    /**
+     * Apply a list of operations to a copy of the testing image.
+     * @param ops the operations to apply.
+     * @return the result.
+     */
+    private static BufferedImage applyAll(List<ImageOperation> ops){
+        BufferedImage image = new BufferedImage(testingImage.getColorModel(), testingImage.copyData(null), testingImage.isAlphaPremultiplied(), null);
+        for (ImageOperation op : ops) {
+            image = op.apply(image);
+        }
+        return image;
+    }
+
+    /**
+     * Check that two images have exactly the same pixels.
+     * @param expected the expected image.
+     * @param actual the actual image.
+     */
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual){
+        Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+        Assertions.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    private static List<ImageOperation> sampleOps(){
+        return List.of(new BrightnessAdjuster(12.5), new ContrastAdjuster(-20), new ConvertToGrey(),
+            new FlipImage(true), new RotateImage(-90), new MeanFilter(2), new MedianFilter(1),
+            new GaussianBlurFilter(2), new SharpenFilter(), new EmbossFilter(3), new SobelFilter(1),
+            new Cropper(10, 20, 200, 150), new ResizeImage(50),
+            new DrawLine(5, 5, 40, 30, Color.RED, 3), new DrawOval(10, 10, 30, 20, new Color(0, 255, 0, 128), 2, true),
+            new DrawRectangle(0, 0, 15, 25, Color.BLUE, 1, false), new Invert());
+    }
+
+    //Tests that every kind of operation comes back from the binary format with the same effect
+    @Test
+    void roundTripTest() throws IOException{
+        List<ImageOperation> ops = sampleOps();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationCodec.write(out, ops);
+
+        Stack<ImageOperation> read = OperationCodec.load(new ByteArrayInputStream(out.toByteArray()));
+        Assertions.assertEquals(ops.size(), read.size());
+        for (int i = 0; i < ops.size(); i++) {
+            Assertions.assertEquals(ops.get(i).getClass(), read.get(i).getClass());
+        }
+        assertSameImage(applyAll(ops), applyAll(read));
+    }
+
+    //Tests that files written with Java serialisation can still be read
+    @Test
+    void legacyTest() throws IOException{
+        Stack<ImageOperation> ops = new Stack<ImageOperation>();
+        ops.add(new BrightnessAdjuster(30));
+        ops.add(new RotateImage(90));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeObject(ops);
+        objOut.close();
+
+        Stack<ImageOperation> read = OperationCodec.load(new ByteArrayInputStream(out.toByteArray()));
+        assertSameImage(applyAll(ops), applyAll(read));
+    }
+
+    //Tests that a partly written final record is ignored, and the records before it are still read
+    @Test
+    void truncatedTest() throws IOException{
+        List<ImageOperation> ops = List.of(new FlipImage(false), new MeanFilter(3));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationCodec.write(out, ops);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 2);
+
+        List<ImageOperation> read = new ArrayList<ImageOperation>();
+        OperationCodec.read(new ByteArrayInputStream(bytes), read::add);
+        Assertions.assertEquals(1, read.size());
+        Assertions.assertTrue(read.get(0) instanceof FlipImage);
+    }
+
+    //Tests that a whole record too short for its operation is an error, not the end of the file, so the records after it are not lost
+    @Test
+    void shortRecordTest() throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        OperationCodec.writeHeader(data);
+        //A mean filter's radius is an int, four bytes
+        data.writeUTF("mean");
+        data.writeInt(2);
+        data.writeShort(1);
+        OperationCodec.writeRecord(data, new ConvertToGrey());
+        OperationCodec.writeRecord(data, new RotateImage(90));
+        data.close();
+        Assertions.assertThrows(IOException.class, () -> OperationCodec.load(new ByteArrayInputStream(out.toByteArray())));
+        //The records start after the eight-byte magic number and the two-byte version
+        DataInputStream records = new DataInputStream(new ByteArrayInputStream(out.toByteArray(), 10, out.size() - 10));
+        IOException ex = Assertions.assertThrows(IOException.class, () -> OperationCodec.readRecord(records));
+        Assertions.assertFalse(ex instanceof EOFException);
+    }
+
+    //Tests that a record with an impossible length, and a file from a newer version of the format, are rejected
+    @Test
+    void corruptTest() throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        OperationCodec.writeHeader(data);
+        OperationCodec.writeRecord(data, new RotateImage(90));
+        data.writeUTF("median");
+        data.writeInt(-4);
+        data.close();
+        Assertions.assertThrows(IOException.class, () -> OperationCodec.load(new ByteArrayInputStream(out.toByteArray())));
+
+        ByteArrayOutputStream valid = new ByteArrayOutputStream();
+        OperationCodec.write(valid, List.of(new RotateImage(90)));
+        byte[] newer = valid.toByteArray();
+        //The version is the two bytes after the eight-byte magic number
+        newer[9] = OperationCodec.VERSION + 1;
+        Assertions.assertEquals(1, OperationCodec.load(new ByteArrayInputStream(valid.toByteArray())).size());
+        Assertions.assertThrows(IOException.class, () -> OperationCodec.read(new ByteArrayInputStream(newer), op -> {}));
+    }
+
+    //Tests that extra parameters added to a record by a newer version are skipped
+    @Test
+    void forwardCompatibleTest() throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        OperationCodec.writeHeader(data);
+        data.writeUTF("median");
+        data.writeInt(8);
+        data.writeInt(4);
+        data.writeInt(12345);
+        OperationCodec.writeRecord(data, new RotateImage(180));
+        data.close();
+
+        Stack<ImageOperation> read = OperationCodec.load(new ByteArrayInputStream(out.toByteArray()));
+        Assertions.assertEquals(2, read.size());
+        Assertions.assertEquals(4, ((MedianFilter) read.get(0)).getRadius());
+        Assertions.assertEquals(180, ((RotateImage) read.get(1)).getDegrees());
+    }
+
+    //Tests that untrusted input is read when it only uses codecs, and refused when it holds serialised operations
+    @Test
+    void untrustedTest() throws IOException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationCodec.write(out, List.of(new ConvertToGrey(), new RotateImage(90)));
+        List<ImageOperation> read = OperationCodec.readUntrusted(new ByteArrayInputStream(out.toByteArray()));
+        Assertions.assertEquals(2, read.size());
+        Assertions.assertEquals(90, ((RotateImage) read.get(1)).getDegrees());
+
+        ByteArrayOutputStream serialised = new ByteArrayOutputStream();
+        OperationCodec.write(serialised, List.of(new ConvertToGrey(), new Invert()));
+        Assertions.assertThrows(IOException.class, () -> OperationCodec.readUntrusted(new ByteArrayInputStream(serialised.toByteArray())));
+
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 2);
+        Assertions.assertThrows(IOException.class, () -> OperationCodec.readUntrusted(new ByteArrayInputStream(truncated)));
+    }
+
+    //Tests that untrusted input is refused when an operation's parameters are beyond what the menus offer
+    @Test
+    void untrustedRangeTest() throws IOException{
+        List<ImageOperation> allowed = List.of(new MeanFilter(10), new MedianFilter(1), new GaussianBlurFilter(10),
+            new ResizeImage(1000), new RotateImage(-90), new Cropper(0, 0, 1, 1), new BrightnessAdjuster(-100),
+            new DrawLine(-5, -5, 5000, 5000, Color.RED, 10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationCodec.write(out, allowed);
+        Assertions.assertEquals(allowed.size(), OperationCodec.readUntrusted(new ByteArrayInputStream(out.toByteArray())).size());
+
+        List<ImageOperation> refused = List.of(new MeanFilter(11), new MedianFilter(0), new GaussianBlurFilter(1000),
+            new ResizeImage(100000), new ResizeImage(Double.NaN), new RotateImage(45), new Cropper(-1, 0, 10, 10),
+            new Cropper(0, 0, 0, 10), new BrightnessAdjuster(Double.NaN), new ContrastAdjuster(1e9),
+            new DrawOval(0, 0, 10, 10, Color.RED, 1000, false));
+        for (ImageOperation op : refused) {
+            ByteArrayOutputStream bad = new ByteArrayOutputStream();
+            OperationCodec.write(bad, List.of(new ConvertToGrey(), op));
+            Assertions.assertThrows(IOException.class, () -> OperationCodec.readUntrusted(new ByteArrayInputStream(bad.toByteArray())));
+        }
+
+        ByteArrayOutputStream many = new ByteArrayOutputStream();
+        OperationCodec.write(many, Collections.nCopies(257, new ConvertToGrey()));
+        Assertions.assertThrows(IOException.class, () -> OperationCodec.readUntrusted(new ByteArrayInputStream(many.toByteArray())));
+    }
+
+}
@@ -0,0 +1,106 @@
+package test.cosc202.andie;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.util.*;
+
+import cosc202.andie.*;
+
+public class OperationPipelineTest {
+
+    private static BufferedImage testingImage;
+
+    //Initializes our testing image
+    @BeforeAll
+    static void getImage(){
+        try{
+            testingImage = ImageIO.read(OperationPipelineTest.class.getResourceAsStream("clocktower.jpg"));
+        }catch (IOException e){
+            System.out.println("Failed to find image");
+            fail();
+        }
+    }
+
+    /**
+     * Make an independent copy of an image.
+     * @param image the image to copy.
+     * @return the copy.
+     */
+    private static BufferedImage copy(BufferedImage image){
+        return new BufferedImage(image.getColorModel(), image.copyData(null), image.isAlphaPremultiplied(), null);
+    }
+
+    //Tests that fused point operations give exactly the same image as applying each in turn
+    @Test
+    void fusedMatchesSequentialTest(){
+        List<ImageOperation> ops = List.of(
+            new BrightnessAdjuster(20), new ContrastAdjuster(-35), new BrightnessAdjuster(-10),
+            new ConvertToGrey(), new ContrastAdjuster(50), new FlipImage(true),
+            new BrightnessAdjuster(15), new BrightnessAdjuster(15));
+
+        BufferedImage sequential = copy(testingImage);
+        for (ImageOperation op : ops) {
+            sequential = op.apply(sequential);
+        }
+        BufferedImage fused = OperationPipeline.apply(copy(testingImage), ops);
+
+        Assertions.assertEquals(sequential.getWidth(), fused.getWidth());
+        Assertions.assertEquals(sequential.getHeight(), fused.getHeight());
+        for (int y = 0; y < fused.getHeight(); y++) {
+            for (int x = 0; x < fused.getWidth(); x++) {
+                Assertions.assertEquals(sequential.getRGB(x, y), fused.getRGB(x, y));
+            }
+        }
+    }
+
+    //Tests that a run of point operations is reported as a single step
+    @Test
+    void stepsTest(){
+        List<ImageOperation> ops = List.of(
+            new BrightnessAdjuster(10), new ContrastAdjuster(10), new FlipImage(false), new ConvertToGrey());
+        List<Integer> steps = new ArrayList<Integer>();
+        OperationPipeline.apply(copy(testingImage), ops, (image, applied) -> steps.add(applied));
+        Assertions.assertEquals(List.of(2, 3, 4), steps);
+    }
+
+    //Tests that every short sequence of flips and rotations simplifies to at most two operations with the same result
+    @Test
+    void orientationTest(){
+        BufferedImage small = new BufferedImage(7, 5, BufferedImage.TYPE_INT_ARGB);
+        small.getGraphics().drawImage(testingImage, 0, 0, null);
+        ImageOperation[] choices = {new FlipImage(true), new FlipImage(false), new RotateImage(90), new RotateImage(-90), new RotateImage(180)};
+
+        int combinations = 1;
+        for (int length = 1; length <= 4; length++) {
+            combinations *= choices.length;
+            for (int c = 0; c < combinations; c++) {
+                List<ImageOperation> ops = new ArrayList<ImageOperation>();
+                for (int i = 0, rest = c; i < length; i++, rest /= choices.length) {
+                    ops.add(choices[rest % choices.length]);
+                }
+                BufferedImage expected = small;
+                for (ImageOperation op : ops) {
+                    expected = op.apply(expected);
+                }
+                List<ImageOperation> simplified = OperationPipeline.simplify(ops);
+                Assertions.assertTrue(simplified.size() <= 2);
+                BufferedImage actual = OperationPipeline.apply(small, simplified);
+                Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+                Assertions.assertEquals(expected.getHeight(), actual.getHeight());
+                for (int y = 0; y < actual.getHeight(); y++) {
+                    for (int x = 0; x < actual.getWidth(); x++) {
+                        Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+                    }
+                }
+            }
+        }
+        Assertions.assertEquals(0, OperationPipeline.simplify(List.of(new RotateImage(90), new RotateImage(90), new RotateImage(180))).size());
+        Assertions.assertEquals(0, OperationPipeline.simplify(List.of(new FlipImage(true), new FlipImage(true))).size());
+    }
+
+}
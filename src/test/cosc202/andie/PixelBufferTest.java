@@ -0,0 +1,107 @@
+package test.cosc202.andie;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.Random;
+
+import cosc202.andie.*;
+
+public class PixelBufferTest {
+
+    /** The image types ANDIE meets most often, including ones PixelBuffer has to copy. */
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_ARGB_PRE};
+
+    /**
+     * Create an image of random pixels.
+     * @param type the type of image.
+     * @param seed the seed for the pixels.
+     * @return the image.
+     */
+    private static BufferedImage randomImage(int type, long seed){
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(23, 17, type);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    //Tests that reading pixels gives what getRGB does, whatever the image's type
+    @Test
+    void readTest(){
+        for (int type : TYPES) {
+            BufferedImage image = randomImage(type, 202);
+            PixelBuffer pixels = new PixelBuffer(image);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    Assertions.assertEquals(image.getRGB(x, y), pixels.read(pixels.index(x, y)), "type " + type);
+                }
+            }
+        }
+    }
+
+    //Tests that writing pixels stores what setRGB does, whatever the image's type
+    @Test
+    void writeTest(){
+        for (int type : TYPES) {
+            BufferedImage expected = randomImage(type, 202);
+            BufferedImage actual = randomImage(type, 202);
+            PixelBuffer pixels = new PixelBuffer(actual);
+            Random random = new Random(25);
+            for (int y = 0; y < actual.getHeight(); y++) {
+                for (int x = 0; x < actual.getWidth(); x++) {
+                    int argb = random.nextInt();
+                    expected.setRGB(x, y, argb);
+                    pixels.write(pixels.index(x, y), argb);
+                }
+            }
+            Assertions.assertSame(actual, pixels.commit());
+            for (int y = 0; y < actual.getHeight(); y++) {
+                for (int x = 0; x < actual.getWidth(); x++) {
+                    Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), "type " + type);
+                }
+            }
+        }
+    }
+
+    //Tests that converting to the working type keeps every pixel as getRGB gives it
+    @Test
+    void toWorkingTypeTest(){
+        for (int type : TYPES) {
+            BufferedImage image = randomImage(type, 202);
+            BufferedImage working = PixelBuffer.toWorkingType(image);
+            Assertions.assertEquals(PixelBuffer.WORKING_TYPE, working.getType());
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    Assertions.assertEquals(image.getRGB(x, y), working.getRGB(x, y), "type " + type);
+                }
+            }
+        }
+    }
+
+    //Tests that an image with an alpha channel can be written as a JPEG, which cannot store one
+    @Test
+    void jpegTest(@TempDir Path dir) throws IOException{
+        BufferedImage image = randomImage(PixelBuffer.WORKING_TYPE, 202);
+        BufferedImage writable = PixelBuffer.toWritableType(image, "jpeg");
+        Assertions.assertFalse(writable.getColorModel().hasAlpha());
+        File file = dir.resolve("image.jpg").toFile();
+        Assertions.assertTrue(ImageIO.write(writable, "jpeg", file));
+        Assertions.assertTrue(file.length() > 0);
+
+        BufferedImage read = ImageIO.read(file);
+        Assertions.assertEquals(image.getWidth(), read.getWidth());
+        Assertions.assertEquals(image.getHeight(), read.getHeight());
+        // A PNG can store the alpha channel, so the image is written as it is
+        Assertions.assertSame(image, PixelBuffer.toWritableType(image, "png"));
+    }
+
+}
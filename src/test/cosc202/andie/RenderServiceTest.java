@@ -0,0 +1,249 @@
+package test.cosc202.andie;
+import static org.junit.jupiter.api.Assertions.fail;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import javax.imageio.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import cosc202.andie.*;
+
+public class RenderServiceTest {
+
+    private static BufferedImage testingImage;
+    private static byte[] testingImageBytes;
+    private RenderService service;
+
+    //Initializes our testing image
+    @BeforeAll
+    static void getImage(){
+        try{
+            testingImage = ImageIO.read(RenderServiceTest.class.getResourceAsStream("clocktower.jpg"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(testingImage, "png", out);
+            testingImageBytes = out.toByteArray();
+        }catch (IOException e){
+            System.out.println("Failed to find image");
+            fail();
+        }
+    }
+
+    @AfterEach
+    void stopService(){
+        if (service != null) {
+            service.stop(0);
+        }
+    }
+
+    /**
+     * Send a render request for the testing image.
+     * @param ops the operations to apply.
+     * @return the open connection, after the request has been sent.
+     */
+    private HttpURLConnection post(List<ImageOperation> ops) throws IOException{
+        return post(ops, testingImageBytes);
+    }
+
+    /**
+     * Send a render request.
+     * @param ops the operations to apply.
+     * @param imageBytes the encoded image to apply them to.
+     * @return the open connection, after the request has been sent.
+     */
+    private HttpURLConnection post(List<ImageOperation> ops, byte[] imageBytes) throws IOException{
+        String boundary = "andie-test-boundary";
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"ops\"; filename=\"edit.ops\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        OperationCodec.write(body, ops);
+        body.write(("\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"in.png\"\r\n"
+            + "Content-Type: image/png\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        body.write(imageBytes);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+
+        URL url = new URL("http://localhost:" + service.getPort() + "/render");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        connection.getOutputStream().write(body.toByteArray());
+        return connection;
+    }
+
+    //Tests that a submitted image comes back with the operations applied, along with its timings
+    @Test
+    void renderTest() throws IOException{
+        service = new RenderService(0, 2, 2, RenderService.DEFAULT_MAX_REQUEST_BYTES);
+        service.start();
+        List<ImageOperation> ops = List.of(new ConvertToGrey(), new RotateImage(90));
+        HttpURLConnection connection = post(ops);
+        Assertions.assertEquals(200, connection.getResponseCode());
+        Assertions.assertEquals("image/png", connection.getContentType());
+        Assertions.assertTrue(connection.getHeaderField("Server-Timing").contains("render;dur="));
+        BufferedImage actual = ImageIO.read(connection.getInputStream());
+
+        BufferedImage expected = new BufferedImage(testingImage.getColorModel(), testingImage.copyData(null), testingImage.isAlphaPremultiplied(), null);
+        for (ImageOperation op : ops) {
+            expected = op.apply(expected);
+        }
+        Assertions.assertEquals(expected.getWidth(), actual.getWidth());
+        Assertions.assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                Assertions.assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Operations that take the service a while to render.
+     * @return the operations.
+     */
+    private static List<ImageOperation> slowOps(){
+        List<ImageOperation> ops = new ArrayList<ImageOperation>();
+        for (int i = 0; i < 8; i++) {
+            ops.add(new MedianFilter(10));
+        }
+        return ops;
+    }
+
+    /**
+     * Wait for the service's metrics to contain a line.
+     * @param line the line to wait for.
+     */
+    private void awaitMetric(String line) throws Exception{
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!metrics().contains(line)) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, line);
+            Thread.sleep(10);
+        }
+    }
+
+    //Tests that requests beyond the service's capacity are turned away rather than queued
+    @Test
+    void busyTest() throws Exception{
+        service = new RenderService(0, 1, 0, RenderService.DEFAULT_MAX_REQUEST_BYTES);
+        service.start();
+        // Hold the only place with a request that takes a while to render
+        int[] slowCode = new int[1];
+        Thread slow = new Thread(() -> {
+            try {
+                slowCode[0] = post(slowOps()).getResponseCode();
+            } catch (IOException ex) {
+                slowCode[0] = -1;
+            }
+        });
+        slow.start();
+        awaitMetric("andie_requests_in_flight 1");
+
+        HttpURLConnection connection = post(List.of(new ConvertToGrey()));
+        Assertions.assertEquals(503, connection.getResponseCode());
+        Assertions.assertNotNull(connection.getHeaderField("Retry-After"));
+        Assertions.assertTrue(metrics().contains("andie_requests_rejected 1"));
+        slow.join();
+        Assertions.assertEquals(200, slowCode[0]);
+    }
+
+    //Tests that a client that is slow to send its request is disconnected, and does not hold the service's capacity meanwhile
+    @Test
+    void slowClientTest() throws Exception{
+        service = new RenderService(0, 1, 0, RenderService.DEFAULT_MAX_REQUEST_BYTES, 500, RenderService.DEFAULT_RENDER_TIMEOUT_MILLIS);
+        service.start();
+        try (Socket slow = new Socket("localhost", service.getPort())) {
+            OutputStream out = slow.getOutputStream();
+            out.write(("POST /render HTTP/1.1\r\nHost: localhost\r\nContent-Type: multipart/form-data; boundary=x\r\n"
+                + "Content-Length: 1000\r\n\r\n--x").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            Assertions.assertEquals(200, post(List.of(new ConvertToGrey())).getResponseCode());
+            slow.setSoTimeout(10000);
+            try {
+                Assertions.assertEquals(-1, slow.getInputStream().read());
+            } catch (SocketException ex) {
+                // Reset rather than closed cleanly
+            }
+        }
+        Assertions.assertTrue(metrics().contains("andie_requests_in_flight 0"));
+    }
+
+    //Tests that many clients slow to send their bodies are turned away, without holding up other requests
+    @Test
+    void slowClientsTest() throws Exception{
+        service = new RenderService(0, 1, 0, RenderService.DEFAULT_MAX_REQUEST_BYTES, 5000, RenderService.DEFAULT_RENDER_TIMEOUT_MILLIS);
+        service.start();
+        List<Socket> slow = new ArrayList<Socket>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Socket socket = new Socket("localhost", service.getPort());
+                slow.add(socket);
+                socket.getOutputStream().write(("POST /render HTTP/1.1\r\nHost: localhost\r\nContent-Type: multipart/form-data; boundary=x\r\n"
+                    + "Content-Length: 1000\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                socket.getOutputStream().flush();
+            }
+            awaitMetric("andie_requests_total 3");
+
+            long start = System.nanoTime();
+            Assertions.assertTrue(metrics().contains("andie_requests_in_flight 0"));
+            Assertions.assertEquals(503, post(List.of(new ConvertToGrey())).getResponseCode());
+            Assertions.assertTrue(System.nanoTime() - start < 2000L * 1000 * 1000);
+        } finally {
+            for (Socket socket : slow) {
+                socket.close();
+            }
+        }
+    }
+
+    //Tests that a render taking too long is abandoned, and its place given back once it stops
+    @Test
+    void renderTimeoutTest() throws Exception{
+        service = new RenderService(0, 1, 0, RenderService.DEFAULT_MAX_REQUEST_BYTES, RenderService.DEFAULT_READ_TIMEOUT_MILLIS, 1000);
+        service.start();
+        Assertions.assertEquals(503, post(slowOps()).getResponseCode());
+        awaitMetric("andie_requests_in_flight 0");
+        Assertions.assertEquals(200, post(List.of(new ConvertToGrey())).getResponseCode());
+    }
+
+    //Tests that images too large to render, from the start or part way through, are refused before being decoded
+    @Test
+    void tooManyPixelsTest() throws IOException{
+        service = new RenderService(0, 1, 0, RenderService.DEFAULT_MAX_REQUEST_BYTES);
+        service.start();
+        // A tiny PNG whose header claims it is 100000 pixels square
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB), "png", out);
+        byte[] png = out.toByteArray();
+        ByteBuffer header = ByteBuffer.wrap(png);
+        header.putInt(16, 100000);
+        header.putInt(20, 100000);
+        CRC32 crc = new CRC32();
+        crc.update(png, 12, 17);
+        header.putInt(29, (int) crc.getValue());
+        Assertions.assertEquals(400, post(List.of(new ConvertToGrey()), png).getResponseCode());
+
+        // 864x1390 is allowed, but not resized to 10 times as wide and high
+        Assertions.assertEquals(400, post(List.of(new ResizeImage(1000))).getResponseCode());
+        // Nor is a crop outside the image, once it has been turned on its side
+        Assertions.assertEquals(400, post(List.of(new RotateImage(90), new Cropper(1000, 0, 400, 100))).getResponseCode());
+        Assertions.assertEquals(200, post(List.of(new RotateImage(90), new Cropper(1000, 0, 390, 100))).getResponseCode());
+    }
+
+    /**
+     * Get the service's metrics.
+     * @return the metrics text.
+     */
+    private String metrics() throws IOException{
+        URL url = new URL("http://localhost:" + service.getPort() + "/metrics");
+        try (InputStream in = url.openStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -86,5 +86,38 @@ public class RotateImageTest {
         }
     }
 
+    //Tests that applying the inverse of a rotation restores the original image
+    @Test
+    void inverseTest(){
+        RotateImage filter = new RotateImage(90);
+        BufferedImage rotated = filter.apply(testingImage);
+        BufferedImage restored = filter.inverse().apply(rotated);
+
+        int randomXCoord = randomInRange(testingImage.getWidth());
+        int randomYCoord = randomInRange(testingImage.getHeight());
+
+        Assertions.assertEquals(testingImage.getWidth(), restored.getWidth());
+        Assertions.assertEquals(testingImage.getHeight(), restored.getHeight());
+        Assertions.assertEquals(testingImage.getRGB(randomXCoord, randomYCoord), restored.getRGB(randomXCoord, randomYCoord));
+        Assertions.assertEquals(testingImage.getRGB(0, 0), restored.getRGB(0, 0));
+    }
+
+    //Tests that rotation gives the same pixels whether or not the image is stored as packed ints
+    @Test
+    void packedImageTest(){
+        BufferedImage packed = new BufferedImage(testingImage.getWidth(), testingImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+        packed.getGraphics().drawImage(testingImage, 0, 0, null);
+        RotateImage filter = new RotateImage(-90);
+        BufferedImage testImage1 = filter.apply(packed);
+        BufferedImage testImage2 = filter.apply(testingImage);
+
+        int randomXCoord = randomInRange(testImage1.getWidth());
+        int randomYCoord = randomInRange(testImage1.getHeight());
+
+        Assertions.assertEquals(BufferedImage.TYPE_INT_RGB, testImage1.getType());
+        Assertions.assertEquals(testImage2.getRGB(randomXCoord, randomYCoord), testImage1.getRGB(randomXCoord, randomYCoord));
+        Assertions.assertEquals(testImage2.getRGB(0, 0), testImage1.getRGB(0, 0));
+        Assertions.assertEquals(0xFF, testImage1.getRGB(0, 0) >>> 24);
+    }
 
 }